@@ -0,0 +1,150 @@
+package org.panda.gem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Compares a benchmark run with a recorded baseline. Both are the CSV results of JMH, written with "-rf csv". Results
+ * are matched by the benchmark name and parameters, and a result is a regression if it is slower than the baseline by
+ * more than the tolerance. The process exits with status 1 if there is a regression, so it can be used as a gate.
+ *
+ * Usage: java -cp target/benchmarks.jar org.panda.gem.BaselineComparison baseline.csv current.csv [tolerance]
+ *
+ * @author Ozgun Babur
+ */
+public class BaselineComparison
+{
+	/**
+	 * Default allowed slowdown, as a fraction of the baseline score.
+	 */
+	static final double DEFAULT_TOLERANCE = 0.1;
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2)
+		{
+			System.err.println("Usage: BaselineComparison baseline.csv current.csv [tolerance]");
+			System.exit(2);
+		}
+
+		double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_TOLERANCE;
+
+		Map<String, Result> baseline = read(args[0]);
+		Map<String, Result> current = read(args[1]);
+
+		int regressions = 0;
+		System.out.println("Benchmark\tBaseline\tCurrent\tUnit\tSpeedup");
+
+		for (String key : current.keySet())
+		{
+			Result cur = current.get(key);
+			Result base = baseline.get(key);
+
+			if (base == null)
+			{
+				System.out.println(key + "\t-\t" + cur.score + "\t" + cur.unit + "\tnew");
+				continue;
+			}
+			if (!base.mode.equals(cur.mode) || !base.unit.equals(cur.unit))
+			{
+				System.out.println(key + "\t" + base.mode + " " + base.unit + "\t" + cur.mode + " " + cur.unit +
+					"\t\tincomparable");
+				continue;
+			}
+
+			// Speedup is above 1 when the current run is faster
+			double speedup = cur.mode.equals("thrpt") ? cur.score / base.score : base.score / cur.score;
+			boolean regression = speedup < 1 / (1 + tolerance);
+			if (regression) regressions++;
+
+			System.out.println(key + "\t" + base.score + "\t" + cur.score + "\t" + cur.unit + "\t" +
+				String.format(Locale.ROOT, "%.3f", speedup) + (regression ? "\tREGRESSION" : ""));
+		}
+
+		baseline.keySet().stream().filter(key -> !current.containsKey(key))
+			.forEach(key -> System.out.println(key + "\t" + baseline.get(key).score + "\t-\t\tmissing"));
+
+		if (regressions > 0)
+		{
+			System.out.println(regressions + " regression(s) beyond the tolerance of " + tolerance);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Reads the JMH results in CSV format.
+	 * @return results mapped from the benchmark name and the parameters
+	 */
+	static Map<String, Result> read(String file) throws IOException
+	{
+		List<String> lines = Files.readAllLines(Paths.get(file));
+		if (lines.isEmpty()) throw new IOException("Empty result file: " + file);
+
+		List<String> header = split(lines.get(0));
+		int name = header.indexOf("Benchmark");
+		int mode = header.indexOf("Mode");
+		int score = header.indexOf("Score");
+		int unit = header.indexOf("Unit");
+		if (name < 0 || mode < 0 || score < 0 || unit < 0) throw new IOException("Not a JMH CSV result: " + file);
+
+		Map<String, Result> map = new LinkedHashMap<>();
+		for (String line : lines.subList(1, lines.size()))
+		{
+			if (line.isEmpty()) continue;
+			List<String> cells = split(line);
+
+			StringBuilder key = new StringBuilder(cells.get(name));
+			for (int i = 0; i < header.size(); i++)
+			{
+				if (header.get(i).startsWith("Param: ") && i < cells.size() && !cells.get(i).isEmpty())
+				{
+					key.append(" ").append(header.get(i).substring(7)).append("=").append(cells.get(i));
+				}
+			}
+
+			map.put(key.toString(), new Result(cells.get(mode), Double.parseDouble(cells.get(score)),
+				cells.get(unit)));
+		}
+		return map;
+	}
+
+	/**
+	 * Splits a CSV line, removing the quotes around the cells.
+	 */
+	private static List<String> split(String line)
+	{
+		List<String> cells = new ArrayList<>();
+		StringBuilder cell = new StringBuilder();
+		boolean quoted = false;
+
+		for (int i = 0; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+			if (c == '"') quoted = !quoted;
+			else if (c == ',' && !quoted)
+			{
+				cells.add(cell.toString());
+				cell.setLength(0);
+			}
+			else cell.append(c);
+		}
+		cells.add(cell.toString());
+		return cells;
+	}
+
+	static class Result
+	{
+		final String mode;
+		final double score;
+		final String unit;
+
+		Result(String mode, double score, String unit)
+		{
+			this.mode = mode;
+			this.score = score;
+			this.unit = unit;
+		}
+	}
+}
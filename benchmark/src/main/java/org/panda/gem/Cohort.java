@@ -0,0 +1,159 @@
+package org.panda.gem;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic cohort that the benchmarks run on. Gene 0 is the factor, the next genes are modulators, and the rest are
+ * targets. A fraction of the targets follow the factor only when their modulator is high, so that the selection finds
+ * some triplets. Data is generated from a fixed seed, hence every run sees the same cohort for the same parameters.
+ *
+ * @author Ozgun Babur
+ */
+@State(Scope.Benchmark)
+public class Cohort
+{
+	@Param({"100", "1000"})
+	public int samples;
+
+	@Param({"2000"})
+	public int genes;
+
+	@Param({"100000"})
+	public int triplets;
+
+	/**
+	 * Fraction of the genes that are modulators.
+	 */
+	static final double MODULATOR_RATIO = 0.1;
+
+	/**
+	 * Fraction of the targets that are modulated.
+	 */
+	static final double MODULATED_RATIO = 0.2;
+
+	/**
+	 * Weight of the factor on a modulated target, relative to the noise.
+	 */
+	static final double EFFECT = 2;
+
+	static final long SEED = 42;
+
+	/**
+	 * Expression values, indexed with gene and sample.
+	 */
+	double[][] vals;
+
+	/**
+	 * Discretized genes.
+	 */
+	Gene[] discretized;
+
+	/**
+	 * Modulator, factor and target indices of each triplet.
+	 */
+	int[] m, f, t;
+
+	/**
+	 * Triplets with their counts.
+	 */
+	List<Triplet> trips;
+
+	/**
+	 * Table with all triplets.
+	 */
+	TripletTable table;
+
+	/**
+	 * Expression file of the cohort, in the format of {@link org.panda.gem.resource.SimpleFileExpressionLoader}.
+	 */
+	File file;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		Random rand = new Random(SEED);
+
+		int mods = Math.max(1, (int) (genes * MODULATOR_RATIO));
+		int targets = genes - mods - 1;
+		if (targets < 1) throw new IllegalArgumentException("Not enough genes: " + genes);
+		if (triplets > mods * targets)
+			throw new IllegalArgumentException("At most " + (mods * targets) + " triplets for " + genes + " genes");
+
+		vals = new double[genes][samples];
+		for (int g = 0; g <= mods; g++)
+		{
+			for (int s = 0; s < samples; s++)
+			{
+				vals[g][s] = rand.nextGaussian();
+			}
+		}
+		for (int g = mods + 1; g < genes; g++)
+		{
+			int mod = 1 + rand.nextInt(mods);
+			boolean modulated = rand.nextDouble() < MODULATED_RATIO;
+
+			for (int s = 0; s < samples; s++)
+			{
+				double effect = modulated && vals[mod][s] > 0 ? EFFECT * vals[0][s] : 0;
+				vals[g][s] = effect + rand.nextGaussian();
+			}
+		}
+
+		discretized = new Gene[genes];
+		for (int g = 0; g < genes; g++)
+		{
+			discretized[g] = new Gene(symbol(g), vals[g]);
+		}
+
+		m = new int[triplets];
+		f = new int[triplets];
+		t = new int[triplets];
+		trips = new ArrayList<>(triplets);
+		table = new TripletTable(triplets);
+
+		for (int i = 0; i < triplets; i++)
+		{
+			m[i] = 1 + i % mods;
+			t[i] = mods + 1 + i / mods;
+			trips.add(new Triplet(discretized[m[i]], discretized[f[i]], discretized[t[i]]));
+			table.add(discretized[m[i]], discretized[f[i]], discretized[t[i]]);
+		}
+
+		file = File.createTempFile("gem-cohort", ".txt");
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file)))
+		{
+			writer.write("Symbol");
+			for (int s = 0; s < samples; s++)
+			{
+				writer.write("\tS" + s);
+			}
+			for (int g = 0; g < genes; g++)
+			{
+				writer.write("\n" + symbol(g));
+				for (double v : vals[g])
+				{
+					writer.write("\t" + v);
+				}
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		if (file != null && !file.delete()) file.deleteOnExit();
+	}
+
+	static String symbol(int g)
+	{
+		return "G" + g;
+	}
+}
@@ -0,0 +1,42 @@
+package org.panda.gem;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discretization of the expression values into tertiles and bit masks.
+ *
+ * @author Ozgun Babur
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeneBenchmark
+{
+	@Benchmark
+	public void discretize(Cohort cohort, Blackhole bh)
+	{
+		for (int g = 0; g < cohort.genes; g++)
+		{
+			bh.consume(new Gene(Cohort.symbol(g), cohort.vals[g]));
+		}
+	}
+
+	@Benchmark
+	public List<Gene> discretizeAll(Cohort cohort)
+	{
+		List<Gene> list = new ArrayList<>(cohort.genes);
+		for (int g = 0; g < cohort.genes; g++)
+		{
+			list.add(new Gene(Cohort.symbol(g), cohort.vals[g], false));
+		}
+		Gene.discretizeAll(list);
+		return list;
+	}
+}
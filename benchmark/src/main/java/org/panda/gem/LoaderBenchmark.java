@@ -0,0 +1,46 @@
+package org.panda.gem;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.panda.gem.resource.SimpleFileExpressionLoader;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the expression file of the cohort, in the eager and the lazy modes.
+ *
+ * @author Ozgun Babur
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoaderBenchmark
+{
+	@Benchmark
+	public SimpleFileExpressionLoader eager(Cohort cohort) throws IOException
+	{
+		return new SimpleFileExpressionLoader(cohort.file.getPath());
+	}
+
+	@Benchmark
+	public SimpleFileExpressionLoader lazyIndex(Cohort cohort) throws IOException
+	{
+		return new SimpleFileExpressionLoader(cohort.file.getPath(), true);
+	}
+
+	/**
+	 * Indexes the file lazily and then requests every gene once.
+	 */
+	@Benchmark
+	public void lazyAll(Cohort cohort, Blackhole bh) throws IOException
+	{
+		SimpleFileExpressionLoader loader = new SimpleFileExpressionLoader(cohort.file.getPath(), true);
+		for (int g = 0; g < cohort.genes; g++)
+		{
+			bh.consume(loader.get(Cohort.symbol(g)));
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package org.panda.gem;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Selection of the significant and categorized triplets of a table.
+ *
+ * @author Ozgun Babur
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SelectorBenchmark
+{
+	@Param({"1", "4"})
+	public int threads;
+
+	/**
+	 * Fresh copy of the cohort table, since the selection writes the coefficients in the table.
+	 */
+	private TripletTable table;
+
+	@Setup(Level.Invocation)
+	public void copyTable(Cohort cohort)
+	{
+		table = cohort.table.subset(IntStream.range(0, cohort.table.size()).toArray());
+	}
+
+	@Benchmark
+	public int[] select()
+	{
+		Selector selector = new Selector(0.1, 0.05);
+		selector.setThreads(threads);
+		return selector.selectRows(table);
+	}
+}
@@ -0,0 +1,92 @@
+package org.panda.gem;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counting the corner cases of triplets, calculating their coefficients, and matching their categories.
+ *
+ * @author Ozgun Babur
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TripletBenchmark
+{
+	@Benchmark
+	public void countObjects(Cohort cohort, Blackhole bh)
+	{
+		Gene[] genes = cohort.discretized;
+		for (int i = 0; i < cohort.triplets; i++)
+		{
+			bh.consume(new Triplet(genes[cohort.m[i]], genes[cohort.f[i]], genes[cohort.t[i]]));
+		}
+	}
+
+	@Benchmark
+	public TripletTable countTable(Cohort cohort)
+	{
+		Gene[] genes = cohort.discretized;
+		TripletTable table = new TripletTable(cohort.triplets);
+		for (int i = 0; i < cohort.triplets; i++)
+		{
+			table.add(genes[cohort.m[i]], genes[cohort.f[i]], genes[cohort.t[i]]);
+		}
+		return table;
+	}
+
+	@Benchmark
+	public void gamma(Cohort cohort)
+	{
+		for (Triplet t : cohort.trips)
+		{
+			t.initGamma();
+		}
+	}
+
+	@Benchmark
+	public void allCoefficients(Cohort cohort)
+	{
+		for (Triplet t : cohort.trips)
+		{
+			t.initGamma();
+			t.initBetaM();
+			t.initOtherCoefficients();
+		}
+	}
+
+	@Benchmark
+	public void category(CategoryState state, Blackhole bh)
+	{
+		for (Triplet t : state.trips)
+		{
+			bh.consume(ModulationCategory.match(t, 0.05));
+		}
+	}
+
+	/**
+	 * Triplets of the cohort with all coefficients calculated.
+	 */
+	@State(Scope.Benchmark)
+	public static class CategoryState
+	{
+		List<Triplet> trips;
+
+		@Setup(Level.Trial)
+		public void setUp(Cohort cohort)
+		{
+			trips = cohort.trips;
+			for (Triplet t : trips)
+			{
+				t.initGamma();
+				t.initBetaM();
+				t.initOtherCoefficients();
+			}
+		}
+	}
+}
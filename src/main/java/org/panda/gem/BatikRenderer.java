@@ -0,0 +1,52 @@
+package org.panda.gem;
+
+import org.apache.batik.dom.GenericDOMImplementation;
+import org.apache.batik.svggen.SVGGraphics2D;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+
+import java.awt.*;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.function.Consumer;
+
+/**
+ * Renders a {@link ModPrint} page with the Batik SVG generator. This builds the whole document in memory, and Batik
+ * is needed on the classpath only when this renderer is used.
+ *
+ * @author Ozgun Babur
+ */
+class BatikRenderer
+{
+	/**
+	 * Writes the drawing of the painter to the file.
+	 */
+	static void write(Consumer<ModCanvas> painter, String outFile) throws IOException
+	{
+		// Get a DOMImplementation.
+		DOMImplementation domImpl = GenericDOMImplementation.getDOMImplementation();
+
+		// Create an instance of org.w3c.dom.Document.
+		String svgNS = "http://www.w3.org/2000/svg";
+		Document document = domImpl.createDocument(svgNS, "svg", null);
+		SVGGraphics2D svgGenerator = new SVGGraphics2D(document);
+
+		painter.accept(new Graphics2DCanvas(svgGenerator)
+		{
+			@Override
+			public void begin(int width, int height)
+			{
+				svgGenerator.setSVGCanvasSize(new Dimension(width, height));
+			}
+		});
+
+		// Finally, stream out SVG using UTF-8 encoding.
+		boolean useCSS = true; // we want to use CSS style attributes
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(outFile), "UTF-8"))
+		{
+			svgGenerator.stream(out, useCSS);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package org.panda.gem;
+
+import java.util.Arrays;
+
+/**
+ * Benjamini-Hochberg procedure on primitive p-value arrays.
+ *
+ * The procedure finds the largest rank k where the k-th smallest p-value is not greater than k * fdr / m, m being the
+ * number of tested p-values, and selects all p-values not greater than that one. Since k / m is at most 1, only the
+ * p-values that are not greater than the FDR threshold can ever be selected. This class first collects only those
+ * candidates and sorts them, so when just a small fraction of the p-values are below the threshold, the cost is
+ * dominated by a single scan over the p-values instead of a full sort. NaN p-values are never selected.
+ *
+ * @author Ozgun Babur
+ */
+public class BenjaminiHochberg
+{
+	/**
+	 * Selects the indices of significant p-values.
+	 * @param pvals all p-values
+	 * @param fdrThr false discovery rate threshold
+	 * @return selected indices, in increasing order
+	 */
+	public static int[] select(double[] pvals, double fdrThr)
+	{
+		int[] index = new int[pvals.length];
+		for (int i = 0; i < index.length; i++)
+		{
+			index[i] = i;
+		}
+		return select(pvals, index, fdrThr);
+	}
+
+	/**
+	 * Selects the significant p-values among the ones at the given indices. Other values in the p-value array are
+	 * ignored, and they do not count as tested.
+	 * @param pvals array that contains the p-values
+	 * @param index indices of the tested p-values in the array
+	 * @param fdrThr false discovery rate threshold
+	 * @return selected indices, in the order they are given
+	 */
+	public static int[] select(double[] pvals, int[] index, double fdrThr)
+	{
+		double pThr = threshold(pvals, index, fdrThr);
+
+		if (Double.isNaN(pThr)) return new int[0];
+
+		int size = 0;
+		int[] selected = new int[index.length];
+
+		for (int i : index)
+		{
+			if (pvals[i] <= pThr) selected[size++] = i;
+		}
+
+		return Arrays.copyOf(selected, size);
+	}
+
+	/**
+	 * Finds the largest p-value that is significant among the ones at the given indices.
+	 * @param pvals array that contains the p-values
+	 * @param index indices of the tested p-values in the array
+	 * @param fdrThr false discovery rate threshold
+	 * @return the p-value threshold, or NaN if nothing is significant
+	 */
+	public static double threshold(double[] pvals, int[] index, double fdrThr)
+	{
+		double[] cand = new double[Math.min(index.length, 16)];
+		int size = 0;
+
+		for (int i : index)
+		{
+			if (pvals[i] <= fdrThr)
+			{
+				if (size == cand.length) cand = Arrays.copyOf(cand, Math.min(index.length, size * 2));
+				cand[size++] = pvals[i];
+			}
+		}
+
+		Arrays.sort(cand, 0, size);
+
+		for (int k = size - 1; k >= 0; k--)
+		{
+			if (cand[k] <= (k + 1) * fdrThr / index.length) return cand[k];
+		}
+
+		return Double.NaN;
+	}
+}
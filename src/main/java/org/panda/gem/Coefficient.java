@@ -0,0 +1,107 @@
+package org.panda.gem;
+
+import org.panda.utility.statistics.ErrorFunction;
+
+/**
+ * Coefficients of the triplet equation, and their calculation from the 8 corner counts of a triplet. The counts are
+ * read from a flat array, where the count for the modulator status i, factor status j and target status k is at
+ * offset + i * 4 + j * 2 + k.
+ *
+ * @author Ozgun Babur
+ */
+enum Coefficient
+{
+	GAMMA(-1, -1, -1, -1)
+	{
+		@Override
+		double value(int[] c, int o)
+		{
+			return p(c, o, 1, 1) - p(c, o, 0, 1) - p(c, o, 1, 0) + p(c, o, 0, 0);
+		}
+
+		@Override
+		double stdev(int[] c, int o)
+		{
+			double pg = (c[o + 1] + c[o + 3] + c[o + 5] + c[o + 7]) /
+				(double) (n(c, o, 0, 0) + n(c, o, 0, 1) + n(c, o, 1, 0) + n(c, o, 1, 1));
+
+			return Math.sqrt(pg * (1 - pg) * ((1D / n(c, o, 0, 0)) + (1D / n(c, o, 0, 1)) + (1D / n(c, o, 1, 0)) +
+				(1D / n(c, o, 1, 1))));
+		}
+	},
+	BETA_M(1, 1, 0, 1),
+	ALPHA_M(1, 0, 0, 0),
+	ALPHA_F(0, 1, 0, 0),
+	BETA_F(1, 1, 1, 0),
+
+	/**
+	 * AlphaF + BetaM
+	 */
+	AF_BM(1, 1, 0, 0);
+
+	/**
+	 * The two M-F status that are compared by a pairwise coefficient.
+	 */
+	private int i, j, k, l;
+
+	Coefficient(int i, int j, int k, int l)
+	{
+		this.i = i;
+		this.j = j;
+		this.k = k;
+		this.l = l;
+	}
+
+	/**
+	 * Value of the coefficient.
+	 */
+	double value(int[] c, int o)
+	{
+		return p(c, o, i, j) - p(c, o, k, l);
+	}
+
+	/**
+	 * Standard deviation of the coefficient under the null hypothesis.
+	 */
+	double stdev(int[] c, int o)
+	{
+		int nij = n(c, o, i, j);
+		int nkl = n(c, o, k, l);
+		double pijkl = (c[o + i * 4 + j * 2 + 1] + c[o + k * 4 + l * 2 + 1]) / (double) (nij + nkl);
+		return Math.sqrt(pijkl * (1 - pijkl) * ((1D / nij) + (1D / nkl)));
+	}
+
+	/**
+	 * Calculates the value and its p-value, and writes them to the given arrays at the given index.
+	 */
+	void compute(int[] c, int o, double[] val, double[] pval, int x)
+	{
+		double v = value(c, o);
+		val[x] = v;
+		pval[x] = pValue(v, stdev(c, o));
+	}
+
+	/**
+	 * Two-tailed p-value of the given value using normal approximation.
+	 */
+	static double pValue(double v, double stdev)
+	{
+		return 1 - ErrorFunction.getSignif(Math.abs(v) / (Triplet.SQRT2 * stdev));
+	}
+
+	/**
+	 * Total count of cases with the given M-F status.
+	 */
+	static int n(int[] c, int o, int i, int j)
+	{
+		return c[o + i * 4 + j * 2] + c[o + i * 4 + j * 2 + 1];
+	}
+
+	/**
+	 * Proportion of high targets in the cases with the given M-F status.
+	 */
+	static double p(int[] c, int o, int i, int j)
+	{
+		return c[o + i * 4 + j * 2 + 1] / (double) n(c, o, i, j);
+	}
+}
@@ -0,0 +1,151 @@
+package org.panda.gem;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of coefficient values and p-values, keyed on the 8 corner counts of triplets and the coefficient. All
+ * coefficients are pure functions of the counts, and in a dataset with a fixed number of samples many triplets have
+ * exactly the same counts. On a miss, only the requested coefficient is calculated and stored, so a stage of the
+ * selection never calculates more than it would without the cache.
+ *
+ * The cache is bounded: after it reaches its maximum size, new coefficients are calculated but not stored. Counts are
+ * packed into 16 bits each, so triplets with a count larger than 65535 bypass the cache. The cache is safe to use from
+ * multiple threads.
+ *
+ * @author Ozgun Babur
+ */
+public class CoefficientCache
+{
+	/**
+	 * Maximum number of coefficients to store.
+	 */
+	private final int maxSize;
+
+	/**
+	 * Map from count signatures and coefficients to the coefficient value and its p-value.
+	 */
+	private final ConcurrentHashMap<Signature, double[]> map;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+
+	/**
+	 * @param maxSize maximum number of coefficients to store, each for a count signature
+	 */
+	public CoefficientCache(int maxSize)
+	{
+		this.maxSize = maxSize;
+		this.map = new ConcurrentHashMap<>();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	/**
+	 * Gets the given coefficient of the given counts, and writes it to the given index of the value and p-value arrays.
+	 */
+	void compute(int[] c, int o, Coefficient coef, double[] val, double[] pval, int x)
+	{
+		Signature key = Signature.of(c, o, coef);
+		double[] cached = key == null ? null : map.get(key);
+
+		if (cached == null)
+		{
+			misses.increment();
+
+			double v = coef.value(c, o);
+			val[x] = v;
+			pval[x] = Coefficient.pValue(v, coef.stdev(c, o));
+
+			if (key != null && map.size() < maxSize) map.putIfAbsent(key, new double[]{v, pval[x]});
+		}
+		else
+		{
+			hits.increment();
+			val[x] = cached[0];
+			pval[x] = cached[1];
+		}
+	}
+
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * Ratio of hits to all requests.
+	 */
+	public double getHitRate()
+	{
+		long h = getHits();
+		long total = h + getMisses();
+		return total == 0 ? 0 : h / (double) total;
+	}
+
+	/**
+	 * Number of stored coefficients.
+	 */
+	public int size()
+	{
+		return map.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "hits = " + getHits() + ", misses = " + getMisses() + ", size = " + size();
+	}
+
+	/**
+	 * The 8 corner counts packed into two longs, 16 bits each, and the coefficient.
+	 */
+	private static class Signature
+	{
+		final long lo;
+		final long hi;
+		final int coef;
+
+		private Signature(long lo, long hi, int coef)
+		{
+			this.lo = lo;
+			this.hi = hi;
+			this.coef = coef;
+		}
+
+		/**
+		 * Packs the counts, or returns null if any count does not fit into 16 bits.
+		 */
+		static Signature of(int[] c, int o, Coefficient coef)
+		{
+			long lo = 0;
+			long hi = 0;
+
+			for (int i = 0; i < 4; i++)
+			{
+				if ((c[o + i] | c[o + i + 4]) >>> 16 != 0) return null;
+
+				lo |= ((long) c[o + i]) << (i * 16);
+				hi |= ((long) c[o + i + 4]) << (i * 16);
+			}
+			return new Signature(lo, hi, coef.ordinal());
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Long.hashCode((lo * 31 + hi) * 31 + coef);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			return o instanceof Signature && ((Signature) o).lo == lo && ((Signature) o).hi == hi &&
+				((Signature) o).coef == coef;
+		}
+	}
+}
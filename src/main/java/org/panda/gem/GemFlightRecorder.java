@@ -0,0 +1,217 @@
+package org.panda.gem;
+
+import org.panda.gem.resource.GeneCache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Emits Java Flight Recorder events of GEM: a {@link StageEvent} for each stage recorded by {@link PipelineMetrics},
+ * and a periodic {@link GeneCacheEvent} for each registered gene cache. Events are emitted only while recording is
+ * enabled, either with {@link #setEnabled(boolean)}, with the system property "gem.jfr", or by an open recording of
+ * {@link #startRecording(String)}, so that a run without recording does not touch the flight recorder at all. Caches
+ * are registered all the time, so a cache that is created before recording is enabled is also recorded.
+ *
+ * The events are recorded by any flight recording that enables them, such as one started with {@link
+ * #startRecording(String)}, or with the -XX:StartFlightRecording option of the JVM.
+ *
+ * This class does not link to the flight recorder API. The events are emitted by a backend that is loaded by name,
+ * only if the JVM has the flight recorder, so GEM also runs on Java 8 runtimes without it. There, and when the project
+ * is built with a JDK 8 without it, recording is not available.
+ *
+ * @author Ozgun Babur
+ */
+public class GemFlightRecorder
+{
+	/**
+	 * Name of the class that implements the backend with the flight recorder API.
+	 */
+	private static final String BACKEND_CLASS = "org.panda.gem.JfrBackend";
+
+	/**
+	 * The flight recorder backend, or null if the flight recorder is not available.
+	 */
+	private static final Backend BACKEND = loadBackend();
+
+	private static volatile boolean enabled;
+
+	/**
+	 * Whether the events are enabled with {@link #setEnabled(boolean)}.
+	 */
+	private static boolean requested;
+
+	/**
+	 * Number of the open recordings that are started with {@link #startRecording(String)}.
+	 */
+	private static int recordings;
+
+	/**
+	 * Registered gene caches, with the names of their sources. Caches are held weakly.
+	 */
+	private static final Map<GeneCache, String> CACHES = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * Hook of the periodic cache events.
+	 */
+	private static final Runnable CACHE_HOOK = GemFlightRecorder::emitCacheEvents;
+
+	static
+	{
+		if (Boolean.getBoolean("gem.jfr"))
+		{
+			if (isAvailable()) setEnabled(true);
+			else System.err.println("Java Flight Recorder is not available, gem.jfr is ignored.");
+		}
+	}
+
+	private static Backend loadBackend()
+	{
+		try
+		{
+			Class.forName("jdk.jfr.FlightRecorder");
+			return (Backend) Class.forName(BACKEND_CLASS).getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | LinkageError | IllegalStateException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Tells if the flight recorder is available in this JVM and build.
+	 */
+	public static boolean isAvailable()
+	{
+		return BACKEND != null;
+	}
+
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables emitting the GEM events. The recordings of {@link #startRecording(String)} keep the events
+	 * enabled while they are open, regardless of this.
+	 * @throws IllegalStateException if enabling while the flight recorder is not available
+	 */
+	public static synchronized void setEnabled(boolean enabled)
+	{
+		if (enabled && !isAvailable()) throw new IllegalStateException("Java Flight Recorder is not available.");
+		requested = enabled;
+		update();
+	}
+
+	/**
+	 * Enables the events if they are requested or a recording is open, and disables them otherwise.
+	 */
+	private static synchronized void update()
+	{
+		boolean on = requested || recordings > 0;
+
+		if (on && !enabled) BACKEND.addPeriodicHook(CACHE_HOOK);
+		else if (!on && enabled) BACKEND.removePeriodicHook(CACHE_HOOK);
+		enabled = on;
+	}
+
+	/**
+	 * Starts a continuous recording that is written to the given file when it is closed, or when the JVM exits. The
+	 * recording uses the default settings of the JVM, which have low overhead, and includes all GEM events. GEM events
+	 * are enabled until the recording is closed.
+	 * @param file the recording file to write
+	 * @return handle to stop the recording and write it
+	 * @throws IOException if the flight recorder is not available, or the recording cannot be started
+	 */
+	public static Closeable startRecording(String file) throws IOException
+	{
+		if (!isAvailable()) throw new IOException("Java Flight Recorder is not available, cannot record " + file);
+
+		changeRecordings(1);
+		Closeable recording;
+		try
+		{
+			recording = BACKEND.startRecording(file);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			changeRecordings(-1);
+			throw e;
+		}
+
+		AtomicBoolean closed = new AtomicBoolean();
+		return () ->
+		{
+			if (closed.getAndSet(true)) return;
+			try
+			{
+				recording.close();
+			}
+			finally
+			{
+				changeRecordings(-1);
+			}
+		};
+	}
+
+	private static synchronized void changeRecordings(int change)
+	{
+		recordings += change;
+		update();
+	}
+
+	/**
+	 * Registers a gene cache, so that its statistics are recorded periodically while recording is enabled.
+	 * @param source name of the data that is loaded to the cache, such as a file or a study
+	 */
+	public static void register(GeneCache cache, String source)
+	{
+		CACHES.put(cache, source);
+	}
+
+	private static void emitCacheEvents()
+	{
+		Map<GeneCache, String> caches;
+		synchronized (CACHES)
+		{
+			caches = new HashMap<>(CACHES);
+		}
+
+		caches.forEach((cache, source) -> BACKEND.emitCacheEvent(cache, source));
+	}
+
+	/**
+	 * Begins the event of a stage, or returns null if recording is not enabled.
+	 */
+	static Object beginStage()
+	{
+		return enabled ? BACKEND.beginStage() : null;
+	}
+
+	/**
+	 * Ends and commits the event of a stage that is begun with {@link #beginStage()}.
+	 */
+	static void endStage(Object event, PipelineMetrics metrics, String stage, long itemsIn, long itemsOut)
+	{
+		BACKEND.endStage(event, metrics, stage, itemsIn, itemsOut);
+	}
+
+	/**
+	 * Operations that use the flight recorder API.
+	 */
+	interface Backend
+	{
+		void addPeriodicHook(Runnable hook);
+
+		void removePeriodicHook(Runnable hook);
+
+		Closeable startRecording(String file) throws IOException;
+
+		void emitCacheEvent(GeneCache cache, String source);
+
+		Object beginStage();
+
+		void endStage(Object event, PipelineMetrics metrics, String stage, long itemsIn, long itemsOut);
+	}
+}
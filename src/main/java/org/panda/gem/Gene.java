@@ -1,8 +1,6 @@
 package org.panda.gem;
 
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.Collection;
 
 /**
  * Represents a gene with an HGNC symbol, and an expression array. It also has a discretized expression where each 3
@@ -28,33 +26,220 @@ public class Gene
 	 */
 	int[] status;
 
+	/**
+	 * Bit mask of the samples in the low tertile. Bit (i % 64) of word (i / 64) is set if sample i has status 0.
+	 */
+	long[] low;
+
+	/**
+	 * Bit mask of the samples in the high tertile. Bit (i % 64) of word (i / 64) is set if sample i has status 1.
+	 */
+	long[] high;
+
 	public Gene(String symbol, double[] vals)
+	{
+		this(symbol, vals, true);
+	}
+
+	/**
+	 * Constructor that can postpone discretization, so that many genes can be discretized together with
+	 * {@link #discretizeAll(Collection)}.
+	 */
+	public Gene(String symbol, double[] vals, boolean discretize)
 	{
 		this.symbol = symbol;
 
 		if (vals != null)
 		{
 			this.vals = vals;
-			assignStatus();
+			if (discretize) assignStatus();
 		}
 	}
 
 	/**
-	 * Discretizes values according to corresponding tertiles.
+	 * Constructor with already discretized expression, given as the tertile bit masks.
+	 * @see #getLowMask()
+	 * @see #getHighMask()
 	 */
-	private void assignStatus()
+	public Gene(String symbol, double[] vals, long[] low, long[] high)
 	{
+		this.symbol = symbol;
+		this.vals = vals;
+		this.low = low;
+		this.high = high;
+
 		status = new int[vals.length];
+		for (int i = 0; i < status.length; i++)
+		{
+			status[i] = (low[i >>> 6] & (1L << i)) != 0 ? 0 : (high[i >>> 6] & (1L << i)) != 0 ? 1 : -1;
+		}
+	}
+
+	/**
+	 * Bit mask of the samples in the low tertile. Bit (i % 64) of word (i / 64) is set if sample i is low. The returned
+	 * array should not be modified.
+	 */
+	public long[] getLowMask()
+	{
+		return low;
+	}
+
+	/**
+	 * Bit mask of the samples in the high tertile. Bit (i % 64) of word (i / 64) is set if sample i is high. The
+	 * returned array should not be modified.
+	 */
+	public long[] getHighMask()
+	{
+		return high;
+	}
 
-		// indices sorted to values
-		List<Integer> indices = IntStream.range(0, vals.length).boxed()
-			.sorted((i1, i2) -> (int) Math.signum(vals[i1] - vals[i2])).collect(Collectors.toList());
+	/**
+	 * Tells if the discretized expression is ready.
+	 */
+	public boolean isDiscretized()
+	{
+		return status != null;
+	}
 
-		int m1 = vals.length / 3;
-		int m2 = (vals.length * 2) / 3;
+	/**
+	 * Estimates the heap size of the gene in bytes, including its arrays but not its symbol.
+	 */
+	public long estimateSize()
+	{
+		long size = 32;
+		if (vals != null) size += 16 + 8L * vals.length;
+		if (status != null) size += 16 + 4L * status.length;
+		if (low != null) size += 2 * (16 + 8L * low.length);
+		return size;
+	}
 
-		for (int i = 0; i < m1; i++) status[indices.get(i)] = 0;
-		for (int i = m1; i < m2; i++) status[indices.get(i)] = -1;
-		for (int i = m2; i < vals.length; i++) status[indices.get(i)] = 1;
+	/**
+	 * Discretizes the genes that are not discretized yet, in parallel.
+	 */
+	public static void discretizeAll(Collection<Gene> genes)
+	{
+		PipelineMetrics.Stage stage = PipelineMetrics.current();
+		genes.parallelStream().filter(g -> g != null && g.vals != null && !g.isDiscretized()).forEach(g ->
+		{
+			stage.addThread();
+			g.assignStatus();
+		});
 	}
+
+	/**
+	 * Discretizes values according to corresponding tertiles. Samples are ranked by their values, and the lowest
+	 * length / 3 are assigned to the low tertile, the ranks up to (length * 2) / 3 are assigned to the middle, and the
+	 * rest are high. Ties are ranked by the sample order, i.e. among equal values the earlier sample gets the lower
+	 * rank. The two cut values are found with a selection on a copy of the values, so no sorting is needed.
+	 */
+	private void assignStatus()
+	{
+		int[] st = new int[vals.length];
+
+		if (vals.length > 0)
+		{
+			int m1 = vals.length / 3;
+			int m2 = (vals.length * 2) / 3;
+
+			// values at ranks m1 and m2
+			double[] buf = vals.clone();
+			double c1 = select(buf, 0, buf.length - 1, m1);
+			double c2 = select(buf, m1, buf.length - 1, m2);
+
+			// number of values that are strictly less than the cut values
+			int less1 = 0;
+			int less2 = 0;
+			for (double v : vals)
+			{
+				if (v < c1) less1++;
+				if (v < c2) less2++;
+			}
+
+			// number of values equal to the cut values, seen so far
+			int eq1 = 0;
+			int eq2 = 0;
+
+			for (int i = 0; i < vals.length; i++)
+			{
+				double v = vals[i];
+				int rank;
+
+				if (v < c1) st[i] = 0;
+				else if (v == c1)
+				{
+					rank = less1 + eq1++;
+					st[i] = rank < m1 ? 0 : rank < m2 ? -1 : 1;
+				}
+				else if (v < c2) st[i] = -1;
+				else if (v == c2)
+				{
+					rank = less2 + eq2++;
+					st[i] = rank < m2 ? -1 : 1;
+				}
+				else st[i] = 1;
+			}
+		}
+
+		status = st;
+		assignMasks();
+	}
+
+	/**
+	 * Finds the value that would be at index k if the given range of the array were sorted. The array is partially
+	 * reordered such that the range [lo, k] has values not greater than the found value, and the range [k, hi] has
+	 * values not less than it.
+	 */
+	static double select(double[] a, int lo, int hi, int k)
+	{
+		while (hi > lo)
+		{
+			int mid = (lo + hi) >>> 1;
+			double pivot = Math.max(Math.min(a[lo], a[mid]), Math.min(Math.max(a[lo], a[mid]), a[hi]));
+
+			int i = lo;
+			int j = hi;
+
+			while (i <= j)
+			{
+				while (a[i] < pivot) i++;
+				while (a[j] > pivot) j--;
+
+				if (i <= j)
+				{
+					double tmp = a[i];
+					a[i++] = a[j];
+					a[j--] = tmp;
+				}
+			}
+
+			if (k <= j) hi = j;
+			else if (k >= i) lo = i;
+			else return a[k];
+		}
+		return a[k];
+	}
+
+	/**
+	 * Packs the low and high tertile memberships in the status array into bit masks.
+	 */
+	private void assignMasks()
+	{
+		low = new long[wordCount(status.length)];
+		high = new long[low.length];
+
+		for (int i = 0; i < status.length; i++)
+		{
+			if (status[i] == 0) low[i >>> 6] |= 1L << i;
+			else if (status[i] == 1) high[i >>> 6] |= 1L << i;
+		}
+	}
+
+	/**
+	 * Number of long words necessary to hold a bit for each of the given number of samples.
+	 */
+	public static int wordCount(int size)
+	{
+		return (size + 63) >>> 6;
+	}
+
 }
@@ -0,0 +1,40 @@
+package org.panda.gem;
+
+import jdk.jfr.*;
+
+/**
+ * Periodic flight recorder event with the statistics of a gene cache.
+ *
+ * @author Ozgun Babur
+ */
+@Name("org.panda.gem.GeneCache")
+@Label("GEM Gene Cache")
+@Category("GEM")
+@Description("Statistics of the gene cache of an expression loader")
+@Period("1 s")
+@StackTrace(false)
+class GeneCacheEvent extends Event
+{
+	@Label("Source")
+	String source;
+
+	@Label("Genes")
+	int genes;
+
+	@Label("Hits")
+	long hits;
+
+	@Label("Misses")
+	long misses;
+
+	@Label("Hit Rate")
+	@Percentage
+	double hitRate;
+
+	@Label("Evictions")
+	long evictions;
+
+	@Label("Resident Size")
+	@DataAmount
+	long residentBytes;
+}
@@ -0,0 +1,61 @@
+package org.panda.gem;
+
+import java.awt.*;
+
+/**
+ * Canvas that draws on a {@link Graphics2D}.
+ *
+ * @author Ozgun Babur
+ */
+class Graphics2DCanvas implements ModCanvas
+{
+	private final Graphics2D g2d;
+
+	Graphics2DCanvas(Graphics2D g2d)
+	{
+		this.g2d = g2d;
+	}
+
+	@Override
+	public void begin(int width, int height)
+	{
+	}
+
+	@Override
+	public void setColor(Color color, float alpha)
+	{
+		g2d.setPaint(color);
+		g2d.setComposite(alpha == 1f ? ModPrint.text : alpha == 0.5f ? ModPrint.box :
+			AlphaComposite.getInstance(AlphaComposite.SRC_OVER, alpha));
+	}
+
+	@Override
+	public void setFont(Font font)
+	{
+		g2d.setFont(font);
+	}
+
+	@Override
+	public int stringWidth(String s)
+	{
+		return g2d.getFontMetrics().stringWidth(s);
+	}
+
+	@Override
+	public void drawString(String s, int x, int y)
+	{
+		g2d.drawString(s, x, y);
+	}
+
+	@Override
+	public void drawRect(int x, int y, int width, int height)
+	{
+		g2d.drawRect(x, y, width, height);
+	}
+
+	@Override
+	public void fillRect(int x, int y, int width, int height)
+	{
+		g2d.fill(new Rectangle(x, y, width, height));
+	}
+}
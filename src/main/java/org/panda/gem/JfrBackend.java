@@ -0,0 +1,104 @@
+package org.panda.gem;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import org.panda.gem.resource.GeneCache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.text.ParseException;
+
+/**
+ * Backend of {@link GemFlightRecorder} with the flight recorder API. This is the only class, with the event classes,
+ * that links to the API, and it is loaded only when the API exists.
+ *
+ * @author Ozgun Babur
+ */
+class JfrBackend implements GemFlightRecorder.Backend
+{
+	JfrBackend()
+	{
+		if (!FlightRecorder.isAvailable()) throw new IllegalStateException("Flight recorder is not available.");
+	}
+
+	@Override
+	public void addPeriodicHook(Runnable hook)
+	{
+		FlightRecorder.addPeriodicEvent(GeneCacheEvent.class, hook);
+	}
+
+	@Override
+	public void removePeriodicHook(Runnable hook)
+	{
+		FlightRecorder.removePeriodicEvent(hook);
+	}
+
+	@Override
+	public Closeable startRecording(String file) throws IOException
+	{
+		Recording recording;
+		try
+		{
+			recording = new Recording(Configuration.getConfiguration("default"));
+		}
+		catch (ParseException e)
+		{
+			throw new IOException(e);
+		}
+
+		recording.setName("GEM");
+		recording.setToDisk(true);
+		recording.setDumpOnExit(true);
+		recording.setDestination(Paths.get(file));
+		recording.enable(StageEvent.class);
+		recording.enable(GeneCacheEvent.class);
+		recording.start();
+
+		return () ->
+		{
+			recording.stop();
+			recording.close();
+		};
+	}
+
+	@Override
+	public void emitCacheEvent(GeneCache cache, String source)
+	{
+		GeneCacheEvent event = new GeneCacheEvent();
+		event.source = source;
+		event.genes = cache.size();
+		event.hits = cache.getHits();
+		event.misses = cache.getMisses();
+		long requests = event.hits + event.misses;
+		event.hitRate = requests == 0 ? Double.NaN : event.hits / (double) requests;
+		event.evictions = cache.getEvictions();
+		event.residentBytes = cache.getResidentBytes();
+		event.commit();
+	}
+
+	@Override
+	public Object beginStage()
+	{
+		StageEvent event = new StageEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void endStage(Object event, PipelineMetrics metrics, String stage, long itemsIn, long itemsOut)
+	{
+		StageEvent e = (StageEvent) event;
+		e.end();
+		if (!e.shouldCommit()) return;
+
+		e.run = metrics.getName();
+		e.factor = metrics.getFactor();
+		e.study = metrics.getStudy();
+		e.stage = stage;
+		e.itemsIn = itemsIn;
+		e.itemsOut = itemsOut;
+		e.commit();
+	}
+}
@@ -0,0 +1,41 @@
+package org.panda.gem;
+
+import java.awt.*;
+
+/**
+ * Drawing surface of {@link ModPrint}. It has only the few operations that the figure uses, so that the figure can be
+ * written directly as SVG elements, or drawn on any {@link Graphics2D}.
+ *
+ * @author Ozgun Babur
+ */
+public interface ModCanvas
+{
+	/**
+	 * Called once before drawing, with the size of the figure.
+	 */
+	void begin(int width, int height);
+
+	/**
+	 * Sets the color and the opacity of the next drawings.
+	 */
+	void setColor(Color color, float alpha);
+
+	void setFont(Font font);
+
+	/**
+	 * Width of the string in the current font.
+	 */
+	int stringWidth(String s);
+
+	/**
+	 * Draws the string with its baseline starting at the given point.
+	 */
+	void drawString(String s, int x, int y);
+
+	/**
+	 * Draws the outline of a rectangle.
+	 */
+	void drawRect(int x, int y, int width, int height);
+
+	void fillRect(int x, int y, int width, int height);
+}
@@ -1,30 +1,30 @@
 package org.panda.gem;
 
-import org.apache.batik.dom.GenericDOMImplementation;
-import org.apache.batik.svggen.SVGGraphics2D;
-import org.apache.batik.svggen.SVGGraphics2DIOException;
-import org.w3c.dom.DOMImplementation;
-import org.w3c.dom.Document;
-
 import java.awt.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
 /**
- * Creates an SVG figure showing GEM results.
+ * Creates SVG figures showing GEM results.
+ *
+ * By default a figure is written to the file element by element while it is drawn, so it is never kept in memory.
+ * Batik can be used instead with {@link #setBackend(Backend)}, which builds the SVG document in memory first.
+ *
+ * Large results can be split into pages with a limited number of rows, each written to its own file. Pages are
+ * rendered in parallel when multiple threads are set. The renderer keeps no state of a figure, so one instance can
+ * render many figures at the same time. Only the deprecated {@link #paint(Graphics2D)} draws the triplets kept by the
+ * last {@link #process(List)}.
  *
  * @author Emek Demir
  * @author Ozgun Babur
  */
 public class ModPrint
 {
-	/**
-	 * Flag to control grouping method. Results can be grouped by modulator (groupMod = true) or by
-	 * targets (groupMod = false).
-	 */
-	static boolean groupMod = true;
-
 	public static final AlphaComposite text =
 		AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 1f);
 	public static final AlphaComposite box =
@@ -34,10 +34,74 @@ public class ModPrint
 	public static final Font labelfont = new Font("Verdana", Font.PLAIN, 6);
 
 	/**
-	 * Each figure is drawn for just one factor gene.
+	 * Number of groups in a row of the figure.
+	 */
+	private static final int COLUMNS = 5;
+
+	/**
+	 * Ways of writing the SVG file.
+	 */
+	public enum Backend
+	{
+		/**
+		 * Writes the SVG elements directly to the file.
+		 */
+		STREAM,
+
+		/**
+		 * Builds the SVG document with Batik, then writes it. Requires Batik on the classpath.
+		 */
+		BATIK
+	}
+
+	/**
+	 * Ways of grouping the triplets in a figure.
+	 */
+	public enum Grouping
+	{
+		/**
+		 * A group of targets for each modulator.
+		 */
+		MODULATOR("by-modulator"),
+
+		/**
+		 * A group of modulators for each target.
+		 */
+		TARGET("by-target");
+
+		/**
+		 * Suffix of the file name of the figure.
+		 */
+		private final String suffix;
+
+		Grouping(String suffix)
+		{
+			this.suffix = suffix;
+		}
+	}
+
+	private Backend backend = Backend.STREAM;
+
+	/**
+	 * Maximum number of rows in a page. Zero puts all rows in one page.
+	 */
+	private int rowsPerPage = 0;
+
+	/**
+	 * Number of threads for rendering pages.
+	 */
+	private int threads = 1;
+
+	/**
+	 * Pool of the rendering threads, created at the first parallel rendering and reused by the next ones. Idle workers
+	 * of the pool stop by themselves, so it does not need to be closed.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Triplets of the last call to {@link #process(List)}, drawn by {@link #paint(Graphics2D)}.
 	 */
-	protected String factorName;
-	private HashMap<String, Group> model;
+	private volatile List<Triplet> processed;
 
 	//public static Font upFont;
 	//public static Font downFont;
@@ -49,200 +113,391 @@ public class ModPrint
 	}
 
 	/**
-	 * Draws the list of group.
+	 * Selects how the SVG file is written. Default is {@link Backend#STREAM}.
+	 */
+	public void setBackend(Backend backend)
+	{
+		this.backend = backend;
+	}
+
+	/**
+	 * Sets the maximum number of rows in a page. Figures with more rows are written to multiple files, with the page
+	 * number added to the file name. Zero, the default, puts all rows in one page.
+	 */
+	public void setRowsPerPage(int rowsPerPage)
+	{
+		if (rowsPerPage < 0) throw new IllegalArgumentException("Rows per page cannot be negative: " + rowsPerPage);
+		this.rowsPerPage = rowsPerPage;
+	}
+
+	/**
+	 * Sets the number of threads for rendering the pages.
+	 */
+	public synchronized void setThreads(int threads)
+	{
+		if (threads < 1) throw new IllegalArgumentException("Number of threads has to be positive: " + threads);
+		if (pool != null && threads != this.threads)
+		{
+			pool.shutdown();
+			pool = null;
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Draws the triplets of the last call to {@link #process(List)}.
 	 *
 	 * @param g2d
+	 * @deprecated use {@link #paint(Graphics2D, List, Grouping)}
 	 */
+	@Deprecated
 	public void paint(Graphics2D g2d)
 	{
-		List<Group> modlist= new ArrayList<Group>(model.values());
-		Collections.sort(modlist);
+		List<Triplet> trips = processed;
+		if (trips == null) throw new IllegalStateException("No triplets are processed");
+		paint(g2d, trips);
+	}
 
-		int i = 0;
-		Group[][] page = new Group[(modlist.size() / 5) + (modlist.size() % 5 == 0 ? 0 : 1)][5];
-		for (Group mod : modlist)
-		{
-			page[i / 5][i % 5] = mod;
-			i++;
-		}
-		int rowStart = 60;
-		for (int rowi = 0; rowi < page.length; rowi++)
+	/**
+	 * Draws the triplets as one page, grouped by modulator.
+	 *
+	 * @param g2d
+	 * @param trips
+	 */
+	public void paint(Graphics2D g2d, List<Triplet> trips)
+	{
+		paint(g2d, trips, Grouping.MODULATOR);
+	}
+
+	/**
+	 * Draws the triplets as one page.
+	 *
+	 * @param g2d
+	 * @param trips
+	 * @param grouping
+	 */
+	public void paint(Graphics2D g2d, List<Triplet> trips, Grouping grouping)
+	{
+		paint(new Graphics2DCanvas(g2d), trips, grouping);
+	}
+
+	/**
+	 * Draws the triplets as one page on the canvas.
+	 *
+	 * @param canvas
+	 * @param trips
+	 * @param grouping
+	 */
+	public void paint(ModCanvas canvas, List<Triplet> trips, Grouping grouping)
+	{
+		paint(canvas, getFactorName(trips), process(trips, grouping));
+	}
+
+	/**
+	 * Draws the list of group on the canvas. The layout is calculated first, so that the canvas gets the size of the
+	 * figure before the drawing.
+	 *
+	 * @param canvas
+	 * @param factorName
+	 * @param modlist groups, sorted
+	 */
+	protected void paint(ModCanvas canvas, String factorName, List<Group> modlist)
+	{
+		int rows = (modlist.size() + COLUMNS - 1) / COLUMNS;
+		int[] rowStart = new int[rows + 1];
+		int[] rowCenter = new int[rows];
+		rowStart[0] = 60;
+
+		for (int rowi = 0; rowi < rows; rowi++)
 		{
-			Group[] row = page[rowi];
 			int top = 0;
 			int bottom = 0;
-			for (Group mod : row)
+			for (Group mod : modlist.subList(rowi * COLUMNS, Math.min(modlist.size(), (rowi + 1) * COLUMNS)))
 			{
-				if (mod != null)
-				{
-					top = Math.max(top, mod.getTop());
-					bottom = Math.max(bottom, mod.getBottom());
-				}
+				top = Math.max(top, mod.getTop());
+				bottom = Math.max(bottom, mod.getBottom());
 			}
 
-			int rowCenter = rowStart + 10 * top + 6;
-			int rowbottom = rowCenter + 10 * bottom + 42;
-			drawFactorLine(g2d, rowCenter,0);
+			rowCenter[rowi] = rowStart[rowi] + 10 * top + 6;
+			rowStart[rowi + 1] = rowCenter[rowi] + 10 * bottom + 42;
+		}
+
+		int columns = Math.min(modlist.size(), COLUMNS);
+		canvas.begin(50 + 120 * Math.max(columns - 1, 0) + 138, rowStart[rows]);
+
+		for (int rowi = 0; rowi < rows; rowi++)
+		{
+			drawFactorLine(canvas, factorName, rowCenter[rowi], 0);
 
-			for (int col = 0; col < row.length; col++)
+			for (int col = 0; col < COLUMNS && rowi * COLUMNS + col < modlist.size(); col++)
 			{
-				Group mod = row[col];
-				if (mod != null)
-				{
-					drawGroup(g2d, mod, 50 + 120 * col, rowStart, rowCenter, rowbottom);
-				}
+				drawGroup(canvas, modlist.get(rowi * COLUMNS + col), 50 + 120 * col, rowStart[rowi], rowCenter[rowi],
+					rowStart[rowi + 1]);
 			}
-			rowStart = rowbottom;
 		}
 	}
 
-	protected void drawFactorLine(Graphics2D g2d, int rowCenter, int offset)
+	protected void drawFactorLine(ModCanvas canvas, String factorName, int rowCenter, int offset)
 	{
-		setText(g2d);
-		g2d.setFont(modfont);
-		g2d.drawString(factorName, offset+10, rowCenter + 5);
-		g2d.setFont(labelfont);
-		g2d.drawString("activates", offset+10, rowCenter - 7);
-		g2d.setFont(labelfont);
-		g2d.drawString("inhibits", offset+10, rowCenter + 12);
+		setText(canvas);
+		canvas.setFont(modfont);
+		canvas.drawString(factorName, offset+10, rowCenter + 5);
+		canvas.setFont(labelfont);
+		canvas.drawString("activates", offset+10, rowCenter - 7);
+		canvas.setFont(labelfont);
+		canvas.drawString("inhibits", offset+10, rowCenter + 12);
 	}
 
 	/**
 	 * Draws a group.
 	 *
-	 * @param g2d
+	 * @param canvas
 	 * @param mod
 	 * @param x
 	 * @param rowStart
 	 * @param rowCenter
 	 * @param rowBottom
 	 */
-	protected void drawGroup(Graphics2D g2d, Group mod, int x, int rowStart, int rowCenter, int rowBottom)
+	protected void drawGroup(ModCanvas canvas, Group mod, int x, int rowStart, int rowCenter, int rowBottom)
 	{
-		mod.sortMembers();
+		canvas.setColor(Color.LIGHT_GRAY, 1f);
+		canvas.drawRect(x + 27, rowStart - 25, 110, rowBottom - rowStart - 10);
 
-		g2d.setColor(Color.LIGHT_GRAY);
-		g2d.drawRect(x + 27, rowStart - 25, 110, rowBottom - rowStart - 10);
-
-		setText(g2d);
-		g2d.setFont(modfont);
+		setText(canvas);
+		canvas.setFont(modfont);
 		String name = mod.getName();
-		FontMetrics fm = g2d.getFontMetrics();
-		int width = fm.stringWidth(name);
+		int width = canvas.stringWidth(name);
 		int margin = (120 - width) / 2 + 27;
 
-		g2d.drawString(name, x + margin, rowStart - 10);
-		g2d.setFont(labelfont);
-		g2d.drawString("Enhances", x + 33, rowStart);
-		g2d.drawString("Attenuates", x + 67, rowStart);
-		g2d.drawString("Inverts", x + 107, rowStart);
+		canvas.drawString(name, x + margin, rowStart - 10);
+		canvas.setFont(labelfont);
+		canvas.drawString("Enhances", x + 33, rowStart);
+		canvas.drawString("Attenuates", x + 67, rowStart);
+		canvas.drawString("Inverts", x + 107, rowStart);
 		for (Cat cat : Cat.values())
 		{
-			List<String> targets = mod.get(cat);
+			Set<String> targets = mod.get(cat);
 			if (targets != null)
 			{
-				setBox(g2d, cat);
+				setBox(canvas, cat);
 				Rectangle bounds = cat.getBounds(mod.getHeight(cat) * 10, x, rowCenter);
-				g2d.fill(bounds);
-				setText(g2d);
+				canvas.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+				setText(canvas);
 				int i = 0;
 				for (String target : targets)
 				{
 					i++;
-					drawTarget(g2d, bounds.x + 2, bounds.y - 2 + i * 10, target);
+					drawTarget(canvas, bounds.x + 2, bounds.y - 2 + i * 10, target);
 				}
 			}
 		}
 	}
 
-	protected void drawTarget(Graphics2D g2d, int x, int y, String target)
+	protected void drawTarget(ModCanvas canvas, int x, int y, String target)
 	{
-		g2d.drawString(target, x, y);
+		canvas.drawString(target, x, y);
 	}
 
 	/**
 	 * Sets color to the category.
 	 *
-	 * @param g2d
+	 * @param canvas
 	 * @param cat
 	 */
-	private void setBox(Graphics2D g2d, Cat cat)
+	private void setBox(ModCanvas canvas, Cat cat)
 	{
-		g2d.setPaint(cat.getColor());
-		g2d.setComposite(box);
+		canvas.setColor(cat.getColor(), 0.5f);
 	}
 
 	/**
 	 * Switches to text color.
 	 *
-	 * @param g2d
+	 * @param canvas
 	 */
-	private void setText(Graphics2D g2d)
+	private void setText(ModCanvas canvas)
+	{
+		canvas.setColor(Color.BLACK, 1f);
+	}
+
+
+	public List<String> generateGEMPlot(String tripFile, String outFile) throws IOException
 	{
-		g2d.setPaint(Color.BLACK);
-		g2d.setComposite(text);
+		return generateGEMPlot(Triplet.load(tripFile), outFile);
 	}
 
+	/**
+	 * Writes the figure of the triplets, grouped by modulator.
+	 * @return the written files, more than one if the figure is split into pages
+	 */
+	public List<String> generateGEMPlot(List<Triplet> trips, String outFile) throws IOException
+	{
+		return generateGEMPlot(trips, Grouping.MODULATOR, outFile);
+	}
 
-	public void generateGEMPlot(String tripFile, String outFile) throws IOException
+	/**
+	 * Writes the figure of the triplets with the given grouping.
+	 * @return the written files, more than one if the figure is split into pages
+	 */
+	public List<String> generateGEMPlot(List<Triplet> trips, Grouping grouping, String outFile) throws IOException
+	{
+		List<Page> pages = new ArrayList<>();
+		addPages(trips, grouping, outFile, pages);
+		return render(pages);
+	}
+
+	/**
+	 * Writes the figures of the triplets with both groupings, rendering all their pages together. The name of the
+	 * grouping is added to the file name of each figure, such as "results-by-modulator.svg".
+	 * @return the written files
+	 */
+	public List<String> generateGEMPlots(List<Triplet> trips, String outFile) throws IOException
+	{
+		String base = outFile.endsWith(".svg") ? outFile.substring(0, outFile.length() - 4) : outFile;
+
+		List<Page> pages = new ArrayList<>();
+		for (Grouping grouping : Grouping.values())
+		{
+			addPages(trips, grouping, base + "-" + grouping.suffix + ".svg", pages);
+		}
+		return render(pages);
+	}
+
+	/**
+	 * Splits the figure of the triplets into pages, and adds them to the list.
+	 */
+	private void addPages(List<Triplet> trips, Grouping grouping, String outFile, List<Page> pages)
 	{
-		generateGEMPlot(Triplet.load(tripFile), outFile);
+		String factorName = getFactorName(trips);
+		List<Group> groups = process(trips, grouping);
+
+		int perPage = rowsPerPage == 0 ? Math.max(groups.size(), 1) : rowsPerPage * COLUMNS;
+		int count = Math.max((groups.size() + perPage - 1) / perPage, 1);
+		String base = outFile.endsWith(".svg") ? outFile.substring(0, outFile.length() - 4) : outFile;
+
+		for (int i = 0; i < count; i++)
+		{
+			pages.add(new Page(factorName, groups.subList(i * perPage, Math.min(groups.size(), (i + 1) * perPage)),
+				count == 1 ? outFile : base + "-" + (i + 1) + ".svg"));
+		}
 	}
 
-	public void generateGEMPlot(List<Triplet> trips, String outFile) throws IOException
+	/**
+	 * Renders the pages, in parallel if multiple threads are set.
+	 * @return files of the pages
+	 */
+	private List<String> render(List<Page> pages) throws IOException
 	{
-		// Prepare model
-		process(trips);
+		try
+		{
+			if (threads == 1 || pages.size() < 2)
+			{
+				for (Page page : pages)
+				{
+					generateSVG(page);
+				}
+			}
+			else
+			{
+				PipelineMetrics.Stage stage = PipelineMetrics.current();
+				try
+				{
+					getPool().submit(() -> pages.parallelStream().forEach(page ->
+					{
+						stage.addThread();
+						try
+						{
+							generateSVG(page);
+						}
+						catch (IOException e)
+						{
+							throw new UncheckedIOException(e);
+						}
+					})).get();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while rendering");
+				}
+				catch (ExecutionException e)
+				{
+					if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
 
-		// Create an instance of the SVG Generator.
-		generateSVG(outFile);
+		return pages.stream().map(page -> page.file).collect(Collectors.toList());
 	}
 
 	/**
-	 * Render using SVG Graphics2D implementation.
+	 * Gets the pool of the rendering threads, creating it at the first call.
+	 */
+	private synchronized ForkJoinPool getPool()
+	{
+		if (pool == null) pool = new ForkJoinPool(threads);
+		return pool;
+	}
+
+	/**
+	 * Renders a page to its file with the selected backend.
 	 *
-	 * @param outFile
-	 * @throws UnsupportedEncodingException
-	 * @throws FileNotFoundException
-	 * @throws SVGGraphics2DIOException
+	 * @param page
+	 * @throws IOException
 	 */
-	private void generateSVG(String outFile)
-		throws UnsupportedEncodingException, FileNotFoundException, SVGGraphics2DIOException
+	private void generateSVG(Page page) throws IOException
 	{
-		// Get a DOMImplementation.
-		DOMImplementation domImpl = GenericDOMImplementation.getDOMImplementation();
-
-		// Create an instance of org.w3c.dom.Document.
-		String svgNS = "http://www.w3.org/2000/svg";
-		Document document = domImpl.createDocument(svgNS, "svg", null);
-		SVGGraphics2D svgGenerator = new SVGGraphics2D(document);
-		paint(svgGenerator);
-
-		// Finally, stream out SVG to the standard output using
-		// UTF-8 encoding.
-		boolean useCSS = true; // we want to use CSS style attributes
-		Writer out = new OutputStreamWriter(new FileOutputStream(outFile), "UTF-8");
-		svgGenerator.stream(out, useCSS);
+		if (backend == Backend.BATIK)
+		{
+			BatikRenderer.write(canvas -> paint(canvas, page.factorName, page.groups), page.file);
+			return;
+		}
+
+		try (SVGStreamCanvas canvas = new SVGStreamCanvas(new BufferedWriter(
+			new OutputStreamWriter(new FileOutputStream(page.file), StandardCharsets.UTF_8), 1 << 16)))
+		{
+			paint(canvas, page.factorName, page.groups);
+		}
 	}
 
 	/**
-	 * Reads triplets and generates Mod list.
+	 * Gets the factor of the figure, from the first triplet.
+	 */
+	private static String getFactorName(List<Triplet> trips)
+	{
+		return trips.isEmpty() ? null : trips.get(0).F.symbol;
+	}
+
+	/**
+	 * Keeps the triplets to draw with {@link #paint(Graphics2D)}.
 	 *
 	 * @param trips
-	 * @return
-	 * @throws IOException
+	 * @deprecated pass the triplets to {@link #paint(Graphics2D, List)}
 	 */
+	@Deprecated
 	protected void process(List<Triplet> trips) throws IOException
 	{
-		this.model = new HashMap<>();
+		processed = trips;
+	}
+
+	/**
+	 * Groups the triplets with the given grouping.
+	 *
+	 * @param trips
+	 * @param grouping
+	 * @return groups, sorted by decreasing size
+	 */
+	protected static List<Group> process(List<Triplet> trips, Grouping grouping)
+	{
+		Map<String, Group> model = new HashMap<>();
+		boolean groupMod = grouping == Grouping.MODULATOR;
 
 		for (Triplet t : trips)
 		{
-			if (factorName == null)
-			{
-				factorName = t.F.symbol;
-			}
-
 			String modul = groupMod ? t.M.symbol : t.T.symbol;
 
 			if (!model.containsKey(modul))
@@ -259,31 +514,39 @@ public class ModPrint
 
 			if (mod.get(cat) == null)
 			{
-				mod.put(cat, new ArrayList<>());
-			}
-			List<String> tars = mod.get(cat);
-
-			if (!tars.contains(tar))
-			{
-				tars.add(tar);
+				mod.put(cat, new TreeSet<>());
 			}
+			mod.get(cat).add(tar);
 		}
-//		filterGroups();
+//		filterGroups(model);
+
+		List<Group> modlist = new ArrayList<>(model.values());
+		Collections.sort(modlist);
+		return modlist;
 	}
 
 	/**
 	 * Filters out unqualifying groups.
-	 *	 */
-	private void filterGroups()
+	 */
+	private static void filterGroups(Map<String, Group> model)
 	{
-		for (String key : new HashSet<>(model.keySet()))
-		{
-			Group mod = model.get(key);
+		model.values().removeIf(mod -> mod.getSize() < 3);
+	}
 
-			if (mod.getSize() < 3)
-			{
-				model.remove(key);
-			}
+	/**
+	 * A page of a figure, and its file.
+	 */
+	private static class Page
+	{
+		final String factorName;
+		final List<Group> groups;
+		final String file;
+
+		Page(String factorName, List<Group> groups, String file)
+		{
+			this.factorName = factorName;
+			this.groups = groups;
+			this.file = file;
 		}
 	}
 
@@ -294,7 +557,10 @@ public class ModPrint
 	static class Group implements Comparable
 	{
 		private String name;
-		HashMap<Cat, List<String>> cats = new HashMap<>();
+		/**
+		 * Members of each category, sorted.
+		 */
+		EnumMap<Cat, Set<String>> cats = new EnumMap<>(Cat.class);
 
 		public Group(String modName)
 		{
@@ -309,7 +575,7 @@ public class ModPrint
 		public int getSize()
 		{
 			int i = 0;
-			for (List<String> strings : cats.values())
+			for (Set<String> strings : cats.values())
 			{
 				i += strings == null ? 0 : strings.size();
 			}
@@ -341,20 +607,15 @@ public class ModPrint
 			return name;
 		}
 
-		public List<String> get(Cat cat)
+		public Set<String> get(Cat cat)
 		{
 			return cats.get(cat);
 		}
 
-		public void put(Cat cat, List<String> targets)
+		public void put(Cat cat, Set<String> targets)
 		{
 			this.cats.put(cat, targets);
 		}
-
-		public void sortMembers()
-		{
-			cats.values().forEach(Collections::sort);
-		}
 	}
 
 	/**
@@ -1,9 +1,12 @@
 package org.panda.gem;
 
-import org.panda.utility.Tuple;
-
 /**
  * Defines and detects 6 modulation categories.
+ *
+ * Matching is done on a bit mask of the triplet coefficients. For each coefficient in the requirement vector there are
+ * 3 bits: whether it is significant, whether it is negative, and whether it is positive. The category of each possible
+ * mask is determined once, so matching a triplet is a single table lookup.
+ *
  * @author Ozgun Babur
  */
 public enum ModulationCategory
@@ -15,9 +18,43 @@ public enum ModulationCategory
 	ATTENUATES_ACTIVATION(-1, 1, 0, 0, 0),
 	ATTENUATES_INHIBITION(1, -1, 0, 0, 0);
 
+	/**
+	 * The coefficients that the requirement vectors refer to, in order.
+	 */
+	static final Coefficient[] COEFFICIENTS = {Coefficient.GAMMA, Coefficient.ALPHA_F, Coefficient.BETA_F,
+		Coefficient.BETA_M, Coefficient.AF_BM};
+
+	private static final ModulationCategory[] VALUES = values();
+
+	private static final int SIGNIFICANT = 1;
+	private static final int NEGATIVE = 2;
+	private static final int POSITIVE = 4;
+
+	/**
+	 * Ordinal of the matching category for each possible mask, or -1 if no category matches.
+	 */
+	private static final byte[] LOOKUP = new byte[1 << (3 * COEFFICIENTS.length)];
+
+	static
+	{
+		for (int mask = 0; mask < LOOKUP.length; mask++)
+		{
+			LOOKUP[mask] = -1;
+
+			for (ModulationCategory cat : VALUES)
+			{
+				if (cat.matches(mask))
+				{
+					LOOKUP[mask] = (byte) cat.ordinal();
+					break;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Requirement vector indicating signs of the triplet coefficients.
-	 * @see Triplet#getCoefficients()
+	 * @see #COEFFICIENTS
 	 */
 	int[] r;
 
@@ -27,37 +64,82 @@ public enum ModulationCategory
 	}
 
 	/**
-	 * Finds the category that matches the coefficient array of a triplet. Note that each invert category also matches
-	 * to two other categories, so inversions are checked first, and others are matched only if inversions did not
-	 * match.
-	 * @param tuples the coefficient array
-	 * @param thr p-value threshold for a significant coefficient
-	 * @return the matching category
+	 * Checks if this category matches the coefficients represented by the mask. Note that each invert category also
+	 * matches to two other categories, so inversions are checked first, and others are matched only if inversions did
+	 * not match.
+	 * @param mask the coefficient mask
+	 * @return true if matches
 	 */
-	private boolean matches(Tuple[] tuples, double thr)
+	private boolean matches(int mask)
 	{
-		assert tuples.length == r.length;
+		assert COEFFICIENTS.length == r.length;
 
 		for (int i = 0; i < r.length; i++)
 		{
 			if (r[i] != 0)
 			{
-				if (tuples[i].p > thr) return false;
-				if (Math.signum(tuples[i].v) * r[i] < 0) return false;
+				int bits = mask >>> (3 * i);
+				if ((bits & SIGNIFICANT) == 0) return false;
+				if ((bits & (r[i] > 0 ? NEGATIVE : POSITIVE)) != 0) return false;
 			}
 		}
 		return true;
 	}
 
 	/**
-	 * Checks if this category matches the triplet coefficients.
+	 * Generates the 3 mask bits of a coefficient.
+	 */
+	private static int bits(double v, double p, double thr)
+	{
+		return (p > thr ? 0 : SIGNIFICANT) | (v < 0 ? NEGATIVE : 0) | (v > 0 ? POSITIVE : 0);
+	}
+
+	/**
+	 * Finds the category that matches the triplet coefficients.
+	 * @param t the triplet
+	 * @param thr p-value threshold for a significant coefficient
+	 * @return the matching category
 	 */
 	public static ModulationCategory match(Triplet t, double thr)
 	{
-		for (ModulationCategory cat : values())
+		int mask = 0;
+		for (int i = 0; i < COEFFICIENTS.length; i++)
 		{
-			if (cat.matches(t.getCoefficients(), thr)) return cat;
+			mask |= bits(t.getValue(COEFFICIENTS[i]), t.getPval(COEFFICIENTS[i]), thr) << (3 * i);
 		}
-		return null;
+		return match(mask);
+	}
+
+	/**
+	 * Finds the category that matches the coefficients in the given arrays, where each coefficient is located at the
+	 * given index plus its ordinal.
+	 * @param val coefficient values
+	 * @param pval coefficient p-values
+	 * @param x index of the first coefficient
+	 * @param thr p-value threshold for a significant coefficient
+	 * @return the matching category
+	 */
+	static ModulationCategory match(double[] val, double[] pval, int x, double thr)
+	{
+		int mask = 0;
+		for (int i = 0; i < COEFFICIENTS.length; i++)
+		{
+			int y = x + COEFFICIENTS[i].ordinal();
+			mask |= bits(val[y], pval[y], thr) << (3 * i);
+		}
+		return match(mask);
+	}
+
+	private static ModulationCategory match(int mask)
+	{
+		return get(LOOKUP[mask]);
+	}
+
+	/**
+	 * Gets the category with the given ordinal, or null if the ordinal is negative.
+	 */
+	static ModulationCategory get(int ordinal)
+	{
+		return ordinal < 0 ? null : VALUES[ordinal];
 	}
 }
@@ -0,0 +1,305 @@
+package org.panda.gem;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Calculates empirical p-values of triplet coefficients by permuting the sample labels of the targets. This is an
+ * alternative to the normal approximation, which can be poorly calibrated when some modulator-factor cells have few
+ * samples.
+ *
+ * Triplets are grouped by their target, and each permutation of the target labels is applied once per group on the
+ * tertile bit masks of the target. Permutations are generated from the seed and the permutation index, so every group
+ * uses the same permutations, and the results do not depend on the number of threads. Groups are processed in
+ * parallel.
+ *
+ * Permutations of a triplet stop early once its permuted values exceeded the observed value a given number of times
+ * (Besag and Clifford, 1991). Then the p-value is the number of exceedances divided by the number of permutations.
+ * Otherwise all permutations are used and the p-value is (exceedances + 1) / (permutations + 1). Permuted values
+ * that are undefined, which happens when a permutation leaves a cell without samples, count as exceedances.
+ *
+ * @author Ozgun Babur
+ */
+public class PermutationTest
+{
+	/**
+	 * Maximum number of permutations for a triplet.
+	 */
+	private int maxPermutations;
+
+	/**
+	 * Number of exceedances after which the permutations of a triplet stop.
+	 */
+	private int exceedanceLimit;
+
+	/**
+	 * Seed of the permutations.
+	 */
+	private long seed;
+
+	/**
+	 * Number of threads for processing target groups.
+	 */
+	private int threads;
+
+	/**
+	 * Pool of the worker threads, created at the first parallel run and reused by the next ones. Idle workers of the
+	 * pool stop by themselves, so it does not need to be closed.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Total number of permuted values that are calculated.
+	 */
+	private final LongAdder permutedValues;
+
+	/**
+	 * Constructor with the maximum number of permutations.
+	 */
+	public PermutationTest(int maxPermutations)
+	{
+		if (maxPermutations < 1)
+			throw new IllegalArgumentException("Number of permutations has to be positive: " + maxPermutations);
+
+		this.maxPermutations = maxPermutations;
+		this.exceedanceLimit = 10;
+		this.seed = 0;
+		this.threads = 1;
+		this.permutedValues = new LongAdder();
+	}
+
+	/**
+	 * Copies the settings of the given test, with the given number of threads. The copy adds to the permuted value
+	 * count of the given test.
+	 */
+	PermutationTest(PermutationTest test, int threads)
+	{
+		this.maxPermutations = test.maxPermutations;
+		this.exceedanceLimit = test.exceedanceLimit;
+		this.seed = test.seed;
+		this.permutedValues = test.permutedValues;
+		setThreads(threads);
+	}
+
+	/**
+	 * Sets the number of exceedances after which the permutations of a triplet stop. Default is 10.
+	 */
+	public void setExceedanceLimit(int exceedanceLimit)
+	{
+		if (exceedanceLimit < 1)
+			throw new IllegalArgumentException("Exceedance limit has to be positive: " + exceedanceLimit);
+		this.exceedanceLimit = exceedanceLimit;
+	}
+
+	public void setSeed(long seed)
+	{
+		this.seed = seed;
+	}
+
+	public synchronized void setThreads(int threads)
+	{
+		if (threads < 1) throw new IllegalArgumentException("Number of threads has to be positive: " + threads);
+		if (pool != null && threads != this.threads)
+		{
+			pool.shutdown();
+			pool = null;
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Total number of permuted values calculated so far. Comparing this with the number of tested triplets times the
+	 * maximum number of permutations shows the effect of early stopping.
+	 */
+	public long getPermutedValues()
+	{
+		return permutedValues.sum();
+	}
+
+	/**
+	 * Calculates the empirical p-values of the coefficient for the given rows, and writes them in place of the
+	 * p-values in the table. Values of the coefficient should already be calculated.
+	 */
+	void computePvals(TripletTable table, int[] rows, Coefficient coef)
+	{
+		Map<Gene, List<Integer>> groups = new LinkedHashMap<>();
+		for (int r : rows)
+		{
+			groups.computeIfAbsent(table.getTarget(r), t -> new ArrayList<>()).add(r);
+		}
+
+		List<int[]> groupRows = new ArrayList<>();
+		groups.values().forEach(list -> groupRows.add(list.stream().mapToInt(Integer::intValue).toArray()));
+
+		if (threads == 1 || groupRows.size() < 2)
+		{
+			groupRows.forEach(g -> computeGroup(table, g, coef));
+			return;
+		}
+
+		PipelineMetrics.Stage stage = PipelineMetrics.current();
+		try
+		{
+			getPool().submit(() -> groupRows.parallelStream().forEach(g ->
+			{
+				stage.addThread();
+				computeGroup(table, g, coef);
+			})).get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Gets the pool of the worker threads, creating it at the first call.
+	 */
+	private synchronized ForkJoinPool getPool()
+	{
+		if (pool == null) pool = new ForkJoinPool(threads);
+		return pool;
+	}
+
+	/**
+	 * Runs the permutations for the rows that share the same target.
+	 */
+	private void computeGroup(TripletTable table, int[] rows, Coefficient coef)
+	{
+		Gene target = table.getTarget(rows[0]);
+		int n = target.status.length;
+		int words = target.low.length;
+
+		// Modulator-factor masks of each row: low-low, low-high, high-low, high-high
+
+		long[][] mf = new long[rows.length][];
+		double[] observed = new double[rows.length];
+		int[] exceed = new int[rows.length];
+		int[] done = new int[rows.length];
+		int[] active = new int[rows.length];
+		int activeCnt = 0;
+
+		for (int i = 0; i < rows.length; i++)
+		{
+			observed[i] = Math.abs(table.getValue(rows[i], coef));
+			if (Double.isNaN(observed[i])) continue;
+
+			Gene m = table.getModulator(rows[i]);
+			Gene f = table.getFactor(rows[i]);
+			mf[i] = new long[words * 4];
+			for (int w = 0; w < words; w++)
+			{
+				mf[i][w * 4] = m.low[w] & f.low[w];
+				mf[i][w * 4 + 1] = m.low[w] & f.high[w];
+				mf[i][w * 4 + 2] = m.high[w] & f.low[w];
+				mf[i][w * 4 + 3] = m.high[w] & f.high[w];
+			}
+			active[activeCnt++] = i;
+		}
+
+		int[] perm = new int[n];
+		long[] low = new long[words];
+		long[] high = new long[words];
+		int[] c = new int[8];
+
+		for (int k = 0; k < maxPermutations && activeCnt > 0; k++)
+		{
+			permutation(k, perm);
+			permute(target.low, perm, low);
+			permute(target.high, perm, high);
+
+			int kept = 0;
+			for (int a = 0; a < activeCnt; a++)
+			{
+				int i = active[a];
+				count(mf[i], low, high, table.planes, c);
+				double v = Math.abs(coef.value(c, 0));
+				done[i]++;
+
+				// An undefined permuted value, from an empty cell, counts as an exceedance to stay conservative
+				if (!(v < observed[i])) exceed[i]++;
+				if (exceed[i] < exceedanceLimit) active[kept++] = i;
+			}
+			permutedValues.add(activeCnt);
+			activeCnt = kept;
+		}
+
+		for (int i = 0; i < rows.length; i++)
+		{
+			double p = Double.isNaN(observed[i]) ? Double.NaN : exceed[i] >= exceedanceLimit ?
+				exceed[i] / (double) done[i] : (exceed[i] + 1) / (double) (done[i] + 1);
+
+			table.pval[rows[i] * TripletTable.COEF_SIZE + coef.ordinal()] = p;
+		}
+	}
+
+	/**
+	 * Generates the permutation with the given index, using the Fisher-Yates shuffle.
+	 */
+	private void permutation(int k, int[] perm)
+	{
+		SplittableRandom rand = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + k);
+
+		for (int i = 0; i < perm.length; i++)
+		{
+			perm[i] = i;
+		}
+		for (int i = perm.length - 1; i > 0; i--)
+		{
+			int j = rand.nextInt(i + 1);
+			int tmp = perm[i];
+			perm[i] = perm[j];
+			perm[j] = tmp;
+		}
+	}
+
+	/**
+	 * Writes the permuted mask, where sample i gets the bit of sample perm[i].
+	 */
+	private static void permute(long[] mask, int[] perm, long[] permuted)
+	{
+		Arrays.fill(permuted, 0);
+		for (int i = 0; i < perm.length; i++)
+		{
+			int j = perm[i];
+			if ((mask[j >>> 6] & (1L << j)) != 0) permuted[i >>> 6] |= 1L << i;
+		}
+	}
+
+	/**
+	 * Counts the 8 corner cases using the modulator-factor masks and the target masks. If the table is a resample, each
+	 * sample is counted as many times as its multiplicity in the bit planes.
+	 */
+	private static void count(long[] mf, long[] low, long[] high, long[][] planes, int[] c)
+	{
+		Arrays.fill(c, 0);
+		for (int w = 0; w < low.length; w++)
+		{
+			long tl = low[w];
+			long th = high[w];
+
+			for (int x = 0; x < 4; x++)
+			{
+				long cell = mf[w * 4 + x];
+
+				if (planes == null)
+				{
+					c[x * 2] += Long.bitCount(cell & tl);
+					c[x * 2 + 1] += Long.bitCount(cell & th);
+				}
+				else for (int p = 0; p < planes.length; p++)
+				{
+					c[x * 2] += Long.bitCount(cell & tl & planes[p][w]) << p;
+					c[x * 2 + 1] += Long.bitCount(cell & th & planes[p][w]) << p;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,424 @@
+package org.panda.gem;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the cost of each stage of an analysis: wall time, CPU time, allocated bytes, and the number of items that
+ * go in and out of the stage, such as tested and significant triplets. The recorded stages are written as a JSON file
+ * next to the results, so that throughput can be compared across runs.
+ *
+ * CPU time and allocated bytes are measured per thread, and summed over the thread that starts the stage and the
+ * worker threads that join it with {@link Stage#addThread()}. Hence the work of other stages that run at the same
+ * time, such as plots rendered in the background, is not included. A worker that can end before the stage is closed
+ * has to leave the stage with {@link Stage#removeThread()}, otherwise its work is lost. Measures that the JVM does not
+ * support are reported as -1.
+ *
+ * A stage can be started inside another stage of the same metrics, such as discretization inside loading. The work of
+ * the inner stage is then left out of the outer one, so that each piece of work is counted in one stage only.
+ *
+ * When {@link GemFlightRecorder} is enabled, each stage is also emitted as a flight recorder event.
+ *
+ * @author Ozgun Babur
+ */
+public class PipelineMetrics
+{
+	/**
+	 * Name of the run.
+	 */
+	private final String name;
+
+	/**
+	 * Optional factor and study of the run.
+	 */
+	private String factor;
+	private String study;
+
+	/**
+	 * Finished stages, in the order they finished.
+	 */
+	private final List<Stage> stages;
+
+	/**
+	 * Wall clock time of the creation, in milliseconds.
+	 */
+	private final long created;
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * The innermost open stage that is started by the current thread.
+	 */
+	private static final ThreadLocal<Stage> CURRENT = new ThreadLocal<>();
+
+	/**
+	 * The stage that the current thread last joined, for adding a worker to a stage only once.
+	 */
+	private static final ThreadLocal<Stage> JOINED = new ThreadLocal<>();
+
+	public PipelineMetrics(String name)
+	{
+		this.name = name;
+		this.stages = Collections.synchronizedList(new ArrayList<>());
+		this.created = System.currentTimeMillis();
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public String getFactor()
+	{
+		return factor;
+	}
+
+	public void setFactor(String factor)
+	{
+		this.factor = factor;
+	}
+
+	public String getStudy()
+	{
+		return study;
+	}
+
+	public void setStudy(String study)
+	{
+		this.study = study;
+	}
+
+	/**
+	 * Starts measuring a stage. The stage is recorded when it is closed.
+	 */
+	public Stage start(String stage)
+	{
+		return new Stage(this, stage);
+	}
+
+	/**
+	 * Starts measuring a stage of the given metrics, which can be null. Then nothing is measured or recorded.
+	 */
+	public static Stage start(PipelineMetrics metrics, String stage)
+	{
+		return metrics == null ? new Stage(null, stage) : metrics.start(stage);
+	}
+
+	/**
+	 * Gets the innermost open stage that is started by the current thread, for passing it to worker threads. If there
+	 * is none, gets a stage that does not measure or record anything.
+	 */
+	public static Stage current()
+	{
+		Stage stage = CURRENT.get();
+		return stage == null ? new Stage(null, null) : stage;
+	}
+
+	/**
+	 * Gets the finished stages.
+	 */
+	public List<Stage> getStages()
+	{
+		synchronized (stages)
+		{
+			return new ArrayList<>(stages);
+		}
+	}
+
+	/**
+	 * Writes the run name, factor and study if set, the start time and the finished stages in JSON format.
+	 */
+	public void write(String file) throws IOException
+	{
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file)))
+		{
+			writer.write("{\n  \"name\": " + quote(name) + ",\n");
+			if (factor != null) writer.write("  \"factor\": " + quote(factor) + ",\n");
+			if (study != null) writer.write("  \"study\": " + quote(study) + ",\n");
+			writer.write("  \"started\": " + created + ",\n  \"stages\": [");
+
+			List<Stage> list = getStages();
+			for (int i = 0; i < list.size(); i++)
+			{
+				Stage s = list.get(i);
+				writer.write((i == 0 ? "" : ",") + "\n    {\"stage\": " + quote(s.name) +
+					", \"wallMillis\": " + millis(s.wall) + ", \"cpuMillis\": " + millis(s.cpu) +
+					", \"allocatedBytes\": " + s.allocated + ", \"itemsIn\": " + s.itemsIn +
+					", \"itemsOut\": " + s.itemsOut + "}");
+			}
+			writer.write("\n  ]\n}\n");
+		}
+	}
+
+	private static String millis(long nanos)
+	{
+		return nanos < 0 ? "-1" : String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	private static String quote(String s)
+	{
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray())
+		{
+			if (c == '"' || c == '\\') sb.append('\\').append(c);
+			else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+			else sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+	private static boolean isCpuTimeAvailable()
+	{
+		return THREADS.isThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+	}
+
+	private static boolean isAllocationAvailable()
+	{
+		return THREADS instanceof com.sun.management.ThreadMXBean &&
+			((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported() &&
+			((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+	}
+
+	/**
+	 * CPU time of the thread in nanoseconds, or -1 if not available or the thread ended.
+	 */
+	private static long cpuTime(long thread)
+	{
+		return isCpuTimeAvailable() ? THREADS.getThreadCpuTime(thread) : -1;
+	}
+
+	/**
+	 * Bytes allocated on the heap by the thread, or -1 if not available or the thread ended.
+	 */
+	private static long allocatedBytes(long thread)
+	{
+		return isAllocationAvailable() ?
+			((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(thread) : -1;
+	}
+
+	/**
+	 * Measurement of a stage.
+	 */
+	public static class Stage implements AutoCloseable
+	{
+		private final PipelineMetrics metrics;
+		private final String name;
+
+		private long wall;
+		private long cpu;
+		private long allocated;
+		private long itemsIn;
+		private long itemsOut;
+
+		/**
+		 * CPU time and allocated bytes of each thread in the stage when it joined the stage, with the thread id as key.
+		 */
+		private final Map<Long, long[]> threads;
+
+		/**
+		 * CPU time and allocated bytes of the threads that left the stage.
+		 */
+		private final LongAdder leftCpu;
+		private final LongAdder leftAllocated;
+
+		/**
+		 * The stage that was open in the starting thread before this one.
+		 */
+		private final Stage outer;
+
+		/**
+		 * Id of the starting thread.
+		 */
+		private final long starter;
+
+		/**
+		 * Wall time, and the CPU time and allocated bytes of the starting thread, in the inner stages.
+		 */
+		private long innerWall;
+		private long innerCpu;
+		private long innerAllocated;
+
+		/**
+		 * Flight recorder event of the stage, or null if recording is not enabled.
+		 */
+		private final Object event;
+
+		private Stage(PipelineMetrics metrics, String name)
+		{
+			this.metrics = metrics;
+			this.name = name;
+			this.itemsIn = -1;
+			this.itemsOut = -1;
+			this.threads = new ConcurrentHashMap<>();
+			this.leftCpu = new LongAdder();
+			this.leftAllocated = new LongAdder();
+			this.outer = metrics == null ? null : CURRENT.get();
+			this.starter = Thread.currentThread().getId();
+
+			if (metrics != null)
+			{
+				CURRENT.set(this);
+				addThread();
+				wall = System.nanoTime();
+			}
+			event = metrics == null ? null : GemFlightRecorder.beginStage();
+		}
+
+		/**
+		 * Adds the current thread to the stage, so that its CPU time and allocations from now on are counted in the
+		 * stage. Does nothing if the thread is already in the stage.
+		 */
+		public void addThread()
+		{
+			if (metrics == null || JOINED.get() == this) return;
+
+			JOINED.set(this);
+			long id = Thread.currentThread().getId();
+			threads.putIfAbsent(id, new long[]{cpuTime(id), allocatedBytes(id)});
+		}
+
+		/**
+		 * Removes the current thread from the stage, keeping what it used so far. Workers that can end before the stage
+		 * is closed call this when they finish their part.
+		 */
+		public void removeThread()
+		{
+			if (metrics == null) return;
+
+			if (JOINED.get() == this) JOINED.remove();
+			long id = Thread.currentThread().getId();
+			long[] start = threads.remove(id);
+			if (start == null) return;
+
+			leftCpu.add(used(start[0], cpuTime(id)));
+			leftAllocated.add(used(start[1], allocatedBytes(id)));
+		}
+
+		/**
+		 * Difference of the measures, or zero if either is not available. A thread that ended without leaving the
+		 * stage is not available anymore.
+		 */
+		private static long used(long start, long end)
+		{
+			return start < 0 || end < 0 ? 0 : Math.max(0, end - start);
+		}
+
+		/**
+		 * Sets the number of items that the stage takes.
+		 */
+		public void setItemsIn(long itemsIn)
+		{
+			this.itemsIn = itemsIn;
+		}
+
+		/**
+		 * Sets the number of items that the stage produces.
+		 */
+		public void setItemsOut(long itemsOut)
+		{
+			this.itemsOut = itemsOut;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * Wall time in nanoseconds.
+		 */
+		public long getWallTime()
+		{
+			return wall;
+		}
+
+		/**
+		 * CPU time of the threads in the stage in nanoseconds, or -1 if not available.
+		 */
+		public long getCpuTime()
+		{
+			return cpu;
+		}
+
+		/**
+		 * Bytes allocated by the threads in the stage, or -1 if not available.
+		 */
+		public long getAllocatedBytes()
+		{
+			return allocated;
+		}
+
+		public long getItemsIn()
+		{
+			return itemsIn;
+		}
+
+		public long getItemsOut()
+		{
+			return itemsOut;
+		}
+
+		/**
+		 * Finishes the stage and records it.
+		 */
+		@Override
+		public void close()
+		{
+			if (metrics == null) return;
+
+			wall = System.nanoTime() - wall;
+
+			long c = leftCpu.sum();
+			long a = leftAllocated.sum();
+			long starterCpu = 0;
+			long starterAllocated = 0;
+			for (Map.Entry<Long, long[]> entry : threads.entrySet())
+			{
+				long id = entry.getKey();
+				long tc = used(entry.getValue()[0], cpuTime(id));
+				long ta = used(entry.getValue()[1], allocatedBytes(id));
+				c += tc;
+				a += ta;
+				if (id == starter)
+				{
+					starterCpu = tc;
+					starterAllocated = ta;
+				}
+			}
+
+			// Leave out the inner stages, and leave this stage out of the outer one
+			wall = Math.max(0, wall - innerWall);
+			c = Math.max(0, c - innerCpu);
+			a = Math.max(0, a - innerAllocated);
+			if (outer != null && outer.metrics == metrics)
+			{
+				outer.innerWall += wall + innerWall;
+				outer.innerCpu += starterCpu;
+				outer.innerAllocated += starterAllocated;
+			}
+
+			cpu = isCpuTimeAvailable() ? c : -1;
+			allocated = isAllocationAvailable() ? a : -1;
+
+			if (CURRENT.get() == this)
+			{
+				if (outer == null) CURRENT.remove();
+				else CURRENT.set(outer);
+			}
+			if (JOINED.get() == this) JOINED.remove();
+
+			metrics.stages.add(this);
+			if (event != null) GemFlightRecorder.endStage(event, metrics, name, itemsIn, itemsOut);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package org.panda.gem;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Counts how many times each triplet occurs in a collection of result files, such as the results of the same analysis
+ * in different studies. Files are read one at a time, so the memory grows with the number of distinct triplets, not
+ * with the number of files.
+ *
+ * Symbols are interned to integers, and a triplet with its category is identified with a single long that packs the
+ * modulator, factor and target indices in 20 bits each, and the category in 3 bits. Counts of a triplet are kept from
+ * its first occurrence.
+ *
+ * @author Ozgun Babur
+ */
+public class RecurrenceIntegrator
+{
+	/**
+	 * Maximum number of distinct symbols.
+	 */
+	private static final int MAX_SYMBOLS = 1 << 20;
+
+	private final Map<String, Integer> symbolIndex;
+	private final List<String> symbols;
+
+	/**
+	 * Open addressing hash table from packed keys to triplet ids. A slot is empty if its id is -1.
+	 */
+	private long[] keys;
+	private int[] ids;
+
+	/**
+	 * Number of distinct triplets.
+	 */
+	private int size;
+
+	/**
+	 * Data of the distinct triplets, indexed with their ids: packed keys, corner counts (8 per triplet), and the
+	 * number of occurrences.
+	 */
+	private long[] packed;
+	private int[] counts;
+	private int[] occurrences;
+
+	public RecurrenceIntegrator()
+	{
+		symbolIndex = new HashMap<>();
+		symbols = new ArrayList<>();
+		keys = new long[1024];
+		ids = new int[1024];
+		Arrays.fill(ids, -1);
+		packed = new long[256];
+		counts = new int[256 * 8];
+		occurrences = new int[256];
+	}
+
+	/**
+	 * Reads the triplets in the given result file, which can be tab-delimited or binary.
+	 */
+	public void addFile(String file) throws IOException
+	{
+		Triplet.read(file, this::add);
+	}
+
+	/**
+	 * Counts an occurrence of the triplet.
+	 */
+	public void add(Triplet t)
+	{
+		long key = pack(intern(t.M.symbol), intern(t.F.symbol), intern(t.T.symbol), t.cat);
+
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (ids[slot] >= 0)
+		{
+			if (keys[slot] == key)
+			{
+				occurrences[ids[slot]]++;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		int id = size++;
+		ensureCapacity(size);
+		keys[slot] = key;
+		ids[slot] = id;
+		packed[id] = key;
+		System.arraycopy(t.f, 0, counts, id * 8, 8);
+		occurrences[id] = 1;
+
+		if (size * 2 > keys.length) rehash();
+	}
+
+	private int intern(String symbol)
+	{
+		Integer index = symbolIndex.get(symbol);
+		if (index == null)
+		{
+			if (symbols.size() == MAX_SYMBOLS) throw new IllegalStateException("Too many distinct symbols.");
+
+			index = symbols.size();
+			symbols.add(symbol);
+			symbolIndex.put(symbol, index);
+		}
+		return index;
+	}
+
+	private static long pack(int m, int f, int t, ModulationCategory cat)
+	{
+		return ((long) m << 43) | ((long) f << 23) | ((long) t << 3) | (cat == null ? 0 : cat.ordinal() + 1);
+	}
+
+	private static int hash(long key)
+	{
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32));
+	}
+
+	private void ensureCapacity(int capacity)
+	{
+		if (capacity <= packed.length) return;
+
+		int newCap = packed.length * 2;
+		packed = Arrays.copyOf(packed, newCap);
+		counts = Arrays.copyOf(counts, newCap * 8);
+		occurrences = Arrays.copyOf(occurrences, newCap);
+	}
+
+	private void rehash()
+	{
+		keys = new long[keys.length * 2];
+		ids = new int[keys.length];
+		Arrays.fill(ids, -1);
+
+		int mask = keys.length - 1;
+		for (int id = 0; id < size; id++)
+		{
+			int slot = hash(packed[id]) & mask;
+			while (ids[slot] >= 0) slot = (slot + 1) & mask;
+			keys[slot] = packed[id];
+			ids[slot] = id;
+		}
+	}
+
+	/**
+	 * Number of distinct triplets.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * The largest number of occurrences of a triplet, or 0 if there are no triplets.
+	 */
+	public int getMaxRecurrence()
+	{
+		int max = 0;
+		for (int id = 0; id < size; id++)
+		{
+			max = Math.max(max, occurrences[id]);
+		}
+		return max;
+	}
+
+	/**
+	 * Gets the number of distinct triplets for each number of occurrences.
+	 * @return array where index k has the number of triplets that occurred exactly k times
+	 */
+	public int[] getHistogram()
+	{
+		int[] hist = new int[getMaxRecurrence() + 1];
+		for (int id = 0; id < size; id++)
+		{
+			hist[occurrences[id]]++;
+		}
+		return hist;
+	}
+
+	/**
+	 * Gets the triplets that occurred at least the given number of times, ordered by decreasing occurrences, and then
+	 * by their first occurrence. Hence the triplets that occurred at least k times, for any k larger than the given
+	 * minimum, are a prefix of the returned list.
+	 */
+	public List<Triplet> getRecurrent(int min)
+	{
+		Integer[] order = new Integer[size];
+		int n = 0;
+		for (int id = 0; id < size; id++)
+		{
+			if (occurrences[id] >= min) order[n++] = id;
+		}
+		Arrays.sort(order, 0, n, (i1, i2) -> Integer.compare(occurrences[i2], occurrences[i1]));
+
+		Triplet.DummyGeneProvider genes = new Triplet.DummyGeneProvider();
+		List<Triplet> trips = new ArrayList<>(n);
+		for (int i = 0; i < n; i++)
+		{
+			int id = order[i];
+			long key = packed[id];
+
+			Triplet t = new Triplet(genes.get(symbols.get((int) (key >>> 43))),
+				genes.get(symbols.get((int) (key >>> 23) & (MAX_SYMBOLS - 1))),
+				genes.get(symbols.get((int) (key >>> 3) & (MAX_SYMBOLS - 1))),
+				Arrays.copyOfRange(counts, id * 8, id * 8 + 8));
+			t.cat = ModulationCategory.get((int) (key & 7) - 1);
+			trips.add(t);
+		}
+		return trips;
+	}
+}
@@ -0,0 +1,146 @@
+package org.panda.gem;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Canvas that writes each drawing as an SVG element to a stream, without keeping the figure in memory. Text widths are
+ * measured with the AWT font metrics, as a {@link Graphics2D} would. Failures of the stream are thrown as {@link
+ * UncheckedIOException}.
+ *
+ * @author Ozgun Babur
+ */
+class SVGStreamCanvas implements ModCanvas, Closeable
+{
+	private final Writer out;
+
+	/**
+	 * Graphics used only for measuring text.
+	 */
+	private final Graphics2D metrics;
+
+	private final Map<Font, FontMetrics> fontMetrics;
+
+	/**
+	 * Attributes of the current color and opacity, and the current font, as they are written in the elements.
+	 */
+	private String fill;
+	private String stroke;
+	private String fontAttributes;
+
+	private FontMetrics currentMetrics;
+
+	/**
+	 * @param out the stream to write, which is closed when the canvas is closed
+	 */
+	SVGStreamCanvas(Writer out)
+	{
+		this.out = out;
+		this.metrics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+		this.fontMetrics = new HashMap<>();
+		setColor(Color.BLACK, 1f);
+		setFont(ModPrint.modfont);
+	}
+
+	@Override
+	public void begin(int width, int height)
+	{
+		write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width + "\" height=\"" + height + "\">\n");
+	}
+
+	@Override
+	public void setColor(Color color, float alpha)
+	{
+		String rgb = String.format("#%02x%02x%02x", color.getRed(), color.getGreen(), color.getBlue());
+		String opacity = alpha == 1f ? "" : String.format(Locale.ROOT, "%.3f", alpha);
+
+		fill = " fill=\"" + rgb + "\"" + (opacity.isEmpty() ? "" : " fill-opacity=\"" + opacity + "\"");
+		stroke = " fill=\"none\" stroke=\"" + rgb + "\"" +
+			(opacity.isEmpty() ? "" : " stroke-opacity=\"" + opacity + "\"");
+	}
+
+	@Override
+	public void setFont(Font font)
+	{
+		fontAttributes = " font-family=\"" + escape(font.getName()) + "\" font-size=\"" + font.getSize() + "\"" +
+			(font.isBold() ? " font-weight=\"bold\"" : "") + (font.isItalic() ? " font-style=\"italic\"" : "");
+		currentMetrics = fontMetrics.computeIfAbsent(font, metrics::getFontMetrics);
+	}
+
+	@Override
+	public int stringWidth(String s)
+	{
+		return currentMetrics.stringWidth(s);
+	}
+
+	@Override
+	public void drawString(String s, int x, int y)
+	{
+		write("<text x=\"" + x + "\" y=\"" + y + "\"" + fontAttributes + fill + ">" + escape(s) + "</text>\n");
+	}
+
+	@Override
+	public void drawRect(int x, int y, int width, int height)
+	{
+		write("<rect x=\"" + x + "\" y=\"" + y + "\" width=\"" + width + "\" height=\"" + height + "\"" + stroke +
+			"/>\n");
+	}
+
+	@Override
+	public void fillRect(int x, int y, int width, int height)
+	{
+		write("<rect x=\"" + x + "\" y=\"" + y + "\" width=\"" + width + "\" height=\"" + height + "\"" + fill +
+			"/>\n");
+	}
+
+	private void write(String s)
+	{
+		try
+		{
+			out.write(s);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static String escape(String s)
+	{
+		StringBuilder sb = null;
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			String rep = c == '&' ? "&amp;" : c == '<' ? "&lt;" : c == '>' ? "&gt;" : c == '"' ? "&quot;" : null;
+
+			if (rep != null && sb == null) sb = new StringBuilder(s.substring(0, i));
+			if (sb != null) sb.append(rep != null ? rep : String.valueOf(c));
+		}
+		return sb == null ? s : sb.toString();
+	}
+
+	/**
+	 * Ends the SVG document and closes the stream.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			out.write("</svg>\n");
+		}
+		finally
+		{
+			out.close();
+			metrics.dispose();
+		}
+	}
+}
@@ -1,17 +1,113 @@
 package org.panda.gem;
 
-import org.panda.utility.statistics.FDR;
-
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
- * Selects significant and categorized triplets.
+ * Selects significant and categorized triplets. The selection has three stages: gamma is calculated for all triplets
+ * and selected with {@link BenjaminiHochberg}, then betaM is calculated for the remaining and selected the same way,
+ * and finally the other coefficients are calculated and a category is assigned. Calculation of coefficients in each
+ * stage can be distributed to multiple threads. Each row of the table is written only by the thread that processes
+ * it, and selections are done on the p-value arrays in the row order, hence the result does not depend on the number
+ * of threads.
+ *
+ * P-values of gamma and betaM can optionally be obtained by a {@link PermutationTest} instead of the normal
+ * approximation. Categories are then also assigned using these empirical p-values.
  *
  * @author Ozgun Babur
  */
 public class Selector
 {
+	/**
+	 * FDR threshold for selecting gamma and then betaM.
+	 */
+	private double fdrThr;
+
+	/**
+	 * P-value threshold to use during category assignment.
+	 */
+	private double categThr;
+
+	/**
+	 * Number of threads to use for calculating coefficients.
+	 */
+	private int threads;
+
+	/**
+	 * Pool of the worker threads, created at the first parallel run and reused by the next ones. Idle workers of the
+	 * pool stop by themselves, so it does not need to be closed.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Optional cache of coefficients. When used, each stage gets its coefficients from the cache.
+	 */
+	private CoefficientCache cache;
+
+	/**
+	 * Optional permutation test. When used, p-values of gamma and betaM are empirical.
+	 */
+	private PermutationTest permutationTest;
+
+	/**
+	 * Optional metrics to record the selection stages in.
+	 */
+	private PipelineMetrics metrics;
+
+	/**
+	 * Constructor with thresholds. The selector uses a single thread unless set otherwise.
+	 * @param fdrThr FDR threshold for selecting gamma and then betaM
+	 * @param categThr P-value threshold to use during category assignment
+	 */
+	public Selector(double fdrThr, double categThr)
+	{
+		this.fdrThr = fdrThr;
+		this.categThr = categThr;
+		this.threads = 1;
+	}
+
+	/**
+	 * Sets the number of threads to use for calculating coefficients.
+	 */
+	public synchronized void setThreads(int threads)
+	{
+		if (threads < 1) throw new IllegalArgumentException("Number of threads has to be positive: " + threads);
+		if (pool != null && threads != this.threads)
+		{
+			pool.shutdown();
+			pool = null;
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the cache to get the coefficients from. Null disables caching.
+	 */
+	public void setCache(CoefficientCache cache)
+	{
+		this.cache = cache;
+	}
+
+	/**
+	 * Sets the permutation test to get the empirical p-values of gamma and betaM from. Null uses the normal
+	 * approximation.
+	 */
+	public void setPermutationTest(PermutationTest permutationTest)
+	{
+		this.permutationTest = permutationTest;
+	}
+
+	/**
+	 * Sets the metrics to record the gamma, betaM and categorization stages in. Null disables recording.
+	 */
+	public void setMetrics(PipelineMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
 	/**
 	 * Selects significant and categorized triplets.
 	 * @param trips triplets
@@ -21,36 +117,173 @@ public class Selector
 	 */
 	public static List<Triplet> selectSignificantAndCategorized(Collection<Triplet> trips,
 		double fdrThr, double categThr)
+	{
+		return selectSignificantAndCategorized(new TripletTable(trips), fdrThr, categThr);
+	}
+
+	/**
+	 * Selects significant and categorized triplets in the table. Triplet objects are created only for the selected
+	 * rows.
+	 * @param table triplets
+	 * @param fdrThr FDR threshold for selecting gamma and then betaM
+	 * @param categThr P-value threshold to use during category assignment
+	 * @return list of significant and categorized triplets, in the order of their rows
+	 */
+	public static List<Triplet> selectSignificantAndCategorized(TripletTable table, double fdrThr, double categThr)
+	{
+		return new Selector(fdrThr, categThr).select(table);
+	}
+
+	/**
+	 * Selects significant and categorized rows of the table. Coefficients and categories of the rows are calculated
+	 * in the table along the way.
+	 * @param table triplets
+	 * @param fdrThr FDR threshold for selecting gamma and then betaM
+	 * @param categThr P-value threshold to use during category assignment
+	 * @return indices of the significant and categorized rows, in increasing order
+	 */
+	public static int[] selectRows(TripletTable table, double fdrThr, double categThr)
+	{
+		return new Selector(fdrThr, categThr).selectRows(table);
+	}
+
+	/**
+	 * Selects significant and categorized triplets in the table.
+	 * @return list of significant and categorized triplets, in the order of their rows
+	 */
+	public List<Triplet> select(TripletTable table)
+	{
+		return table.toTriplets(selectRows(table));
+	}
+
+	/**
+	 * Selects significant and categorized rows of the table.
+	 * @return indices of the significant and categorized rows, in increasing order
+	 */
+	public int[] selectRows(TripletTable table)
 	{
 		// select with gamma pval
 
-		Map<Triplet, Double> map = new HashMap<>(trips.size());
+		int[] rows = IntStream.range(0, table.size()).toArray();
+
+		try (PipelineMetrics.Stage stage = PipelineMetrics.start(metrics, "gamma"))
+		{
+			stage.setItemsIn(rows.length);
+
+			forEach(rows, r -> table.compute(r, Coefficient.GAMMA, cache));
 
-		trips.stream()
-			.peek(Triplet::initGamma)
-			.forEach(t -> map.put(t, t.gamma.p));
+			if (permutationTest != null) permutationTest.computePvals(table, rows, Coefficient.GAMMA);
 
-		List<Triplet> tripList = FDR.selectBH(map, fdrThr);
+			rows = selectBH(table, rows, Coefficient.GAMMA, fdrThr);
+			stage.setItemsOut(rows.length);
+		}
 
 		// select with betaM
 
-		map.clear();
+		try (PipelineMetrics.Stage stage = PipelineMetrics.start(metrics, "betaM"))
+		{
+			stage.setItemsIn(rows.length);
 
-		tripList.stream()
-			.peek(Triplet::initBetaM)
-			.forEach(t -> map.put(t, t.betaM.p));
+			forEach(rows, r -> table.compute(r, Coefficient.BETA_M, cache));
 
-		tripList = FDR.selectBH(map, fdrThr);
+			if (permutationTest != null) permutationTest.computePvals(table, rows, Coefficient.BETA_M);
+
+			rows = selectBH(table, rows, Coefficient.BETA_M, fdrThr);
+			stage.setItemsOut(rows.length);
+		}
 
 		// select with alphaM/betaM, and being in a category
 
-		tripList = tripList.stream()
-			.peek(Triplet::initOtherCoefficients)
-			.filter(t -> t.alphaM.v / t.betaM.v < 1)
-			.peek(t -> t.initCategory(categThr))
-			.filter(t -> t.cat != null)
-			.collect(Collectors.toList());
+		try (PipelineMetrics.Stage stage = PipelineMetrics.start(metrics, "categorization"))
+		{
+			stage.setItemsIn(rows.length);
+
+			forEach(rows, r ->
+			{
+				initOtherCoefficients(table, r);
+
+				table.setCategory(r,
+					table.getValue(r, Coefficient.ALPHA_M) / table.getValue(r, Coefficient.BETA_M) < 1 ?
+					ModulationCategory.match(table.val, table.pval, r * TripletTable.COEF_SIZE, categThr) : null);
+			});
+
+			rows = Arrays.stream(rows).filter(r -> table.cat[r] >= 0).toArray();
+			stage.setItemsOut(rows.length);
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Runs the given action for each row, using the set number of threads.
+	 */
+	private void forEach(int[] rows, IntConsumer action)
+	{
+		if (threads == 1 || rows.length < 2)
+		{
+			for (int r : rows)
+			{
+				action.accept(r);
+			}
+			return;
+		}
+
+		PipelineMetrics.Stage stage = PipelineMetrics.current();
+		try
+		{
+			getPool().submit(() -> Arrays.stream(rows).parallel().forEach(r ->
+			{
+				stage.addThread();
+				action.accept(r);
+			})).get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Gets the pool of the worker threads, creating it at the first call.
+	 */
+	private synchronized ForkJoinPool getPool()
+	{
+		if (pool == null) pool = new ForkJoinPool(threads);
+		return pool;
+	}
+
+	private void initOtherCoefficients(TripletTable table, int row)
+	{
+		table.compute(row, Coefficient.ALPHA_M, cache);
+		table.compute(row, Coefficient.ALPHA_F, cache);
+		table.compute(row, Coefficient.BETA_F, cache);
+		table.compute(row, Coefficient.AF_BM, cache);
+	}
+
+	/**
+	 * Applies Benjamini-Hochberg procedure on the p-values of the given coefficient of the given rows. The p-values are
+	 * used in place in the table.
+	 * @return selected rows, in the given order
+	 */
+	private static int[] selectBH(TripletTable table, int[] rows, Coefficient coef, double fdrThr)
+	{
+		int[] index = new int[rows.length];
+		for (int i = 0; i < rows.length; i++)
+		{
+			index[i] = rows[i] * TripletTable.COEF_SIZE + coef.ordinal();
+		}
+
+		int[] selected = BenjaminiHochberg.select(table.pval, index, fdrThr);
 
-		return tripList;
+		for (int i = 0; i < selected.length; i++)
+		{
+			selected[i] /= TripletTable.COEF_SIZE;
+		}
+		return selected;
 	}
 }
@@ -0,0 +1,301 @@
+package org.panda.gem;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Measures how stable the selection of triplets is, by running the {@link Selector} on bootstrap resamples of the
+ * samples. For each triplet, the fraction of the replicates that select it, and the agreement of the categories that
+ * it gets in those replicates are reported.
+ *
+ * Genes are discretized only once, on the original samples. A resample is represented as the multiplicity of each
+ * sample, stored in bit planes with the layout of the tertile masks, so the counts of a replicate are calculated with
+ * the same popcount operations as the original counts. Replicates are run in parallel, each on its own triplet table
+ * that shares the genes with the original. Replicates are generated from the seed and the replicate index, hence the
+ * results do not depend on the number of threads.
+ *
+ * @author Ozgun Babur
+ */
+public class StabilitySelection
+{
+	/**
+	 * Number of bootstrap replicates.
+	 */
+	private int replicates;
+
+	/**
+	 * FDR threshold for selecting gamma and then betaM.
+	 */
+	private double fdrThr;
+
+	/**
+	 * P-value threshold to use during category assignment.
+	 */
+	private double categThr;
+
+	private long seed;
+
+	/**
+	 * Number of replicates to run in parallel.
+	 */
+	private int threads;
+
+	/**
+	 * Pool of the worker threads, created at the first parallel run and reused by the next ones. Idle workers of the
+	 * pool stop by themselves, so it does not need to be closed.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Optional cache of coefficients, shared by the replicates.
+	 */
+	private CoefficientCache cache;
+
+	/**
+	 * Optional permutation test for the p-values of gamma and betaM, the same with the one of the main selection.
+	 */
+	private PermutationTest permutationTest;
+
+	public StabilitySelection(int replicates, double fdrThr, double categThr)
+	{
+		if (replicates < 1) throw new IllegalArgumentException("Number of replicates has to be positive: " + replicates);
+
+		this.replicates = replicates;
+		this.fdrThr = fdrThr;
+		this.categThr = categThr;
+		this.seed = 0;
+		this.threads = 1;
+	}
+
+	public void setSeed(long seed)
+	{
+		this.seed = seed;
+	}
+
+	public synchronized void setThreads(int threads)
+	{
+		if (threads < 1) throw new IllegalArgumentException("Number of threads has to be positive: " + threads);
+		if (pool != null && threads != this.threads)
+		{
+			pool.shutdown();
+			pool = null;
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the cache to get the coefficients from. Null disables caching.
+	 */
+	public void setCache(CoefficientCache cache)
+	{
+		this.cache = cache;
+	}
+
+	/**
+	 * Sets the permutation test that the main selection uses, so that the replicates are selected in the same way. In
+	 * a replicate, target labels are permuted among the original samples, which keep their multiplicities. Null uses
+	 * the normal approximation.
+	 */
+	public void setPermutationTest(PermutationTest permutationTest)
+	{
+		this.permutationTest = permutationTest;
+	}
+
+	/**
+	 * Runs the selection on the bootstrap replicates of the table.
+	 */
+	public Result run(TripletTable table)
+	{
+		Result result = new Result(table, replicates);
+		if (table.size() == 0) return result;
+
+		int samples = table.getTarget(0).status.length;
+
+		if (threads == 1)
+		{
+			for (int b = 0; b < replicates; b++)
+			{
+				runReplicate(table, samples, b, permutationTest, result);
+			}
+			return result;
+		}
+
+		// Replicates already run in parallel, so their permutations use one thread each
+		PermutationTest test = permutationTest == null ? null : new PermutationTest(permutationTest, 1);
+
+		PipelineMetrics.Stage stage = PipelineMetrics.current();
+		try
+		{
+			getPool().submit(() -> IntStream.range(0, replicates).parallel().forEach(b ->
+			{
+				stage.addThread();
+				runReplicate(table, samples, b, test, result);
+			})).get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the pool of the worker threads, creating it at the first call.
+	 */
+	private synchronized ForkJoinPool getPool()
+	{
+		if (pool == null) pool = new ForkJoinPool(threads);
+		return pool;
+	}
+
+	private void runReplicate(TripletTable table, int samples, int b, PermutationTest test, Result result)
+	{
+		TripletTable rep = table.resample(resample(samples, b));
+
+		Selector selector = new Selector(fdrThr, categThr);
+		selector.setCache(cache);
+		selector.setPermutationTest(test);
+		int[] rows = selector.selectRows(rep);
+
+		result.add(rows, rep.cat);
+	}
+
+	/**
+	 * Draws the bootstrap resample with the given index, and returns the multiplicities of the samples in bit planes.
+	 */
+	private long[][] resample(int samples, int b)
+	{
+		SplittableRandom rand = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + b);
+
+		int[] mult = new int[samples];
+		int max = 0;
+		for (int i = 0; i < samples; i++)
+		{
+			max = Math.max(max, ++mult[rand.nextInt(samples)]);
+		}
+
+		long[][] planes = new long[32 - Integer.numberOfLeadingZeros(max)][Gene.wordCount(samples)];
+		for (int i = 0; i < samples; i++)
+		{
+			for (int p = 0; p < planes.length; p++)
+			{
+				if ((mult[i] & (1 << p)) != 0) planes[p][i >>> 6] |= 1L << i;
+			}
+		}
+		return planes;
+	}
+
+	/**
+	 * Selection counts of the triplets in the replicates.
+	 */
+	public static class Result
+	{
+		private final TripletTable table;
+
+		private final int replicates;
+
+		/**
+		 * Number of replicates that selected each row.
+		 */
+		private final int[] selected;
+
+		/**
+		 * Number of replicates that assigned each category to each row, indexed with row * categories + ordinal.
+		 */
+		private final int[] categoryCounts;
+
+		private static final int CATEGORIES = ModulationCategory.values().length;
+
+		Result(TripletTable table, int replicates)
+		{
+			this.table = table;
+			this.replicates = replicates;
+			this.selected = new int[table.size()];
+			this.categoryCounts = new int[table.size() * CATEGORIES];
+		}
+
+		/**
+		 * Adds the selected rows of a replicate, with the categories in the replicate.
+		 */
+		synchronized void add(int[] rows, byte[] cat)
+		{
+			for (int r : rows)
+			{
+				selected[r]++;
+				categoryCounts[r * CATEGORIES + cat[r]]++;
+			}
+		}
+
+		public int getReplicates()
+		{
+			return replicates;
+		}
+
+		/**
+		 * Fraction of the replicates that selected the row.
+		 */
+		public double getFrequency(int row)
+		{
+			return selected[row] / (double) replicates;
+		}
+
+		/**
+		 * The category that the row got most often, or null if it is never selected.
+		 */
+		public ModulationCategory getMainCategory(int row)
+		{
+			int best = -1;
+			for (int c = 0; c < CATEGORIES; c++)
+			{
+				if (categoryCounts[row * CATEGORIES + c] > 0 &&
+					(best < 0 || categoryCounts[row * CATEGORIES + c] > categoryCounts[row * CATEGORIES + best]))
+				{
+					best = c;
+				}
+			}
+			return ModulationCategory.get(best);
+		}
+
+		/**
+		 * Fraction of the selecting replicates that assigned the main category to the row. NaN if the row is never
+		 * selected.
+		 */
+		public double getCategoryAgreement(int row)
+		{
+			ModulationCategory main = getMainCategory(row);
+			if (main == null) return Double.NaN;
+			return categoryCounts[row * CATEGORIES + main.ordinal()] / (double) selected[row];
+		}
+
+		/**
+		 * Writes the triplets that are selected in at least one replicate, with their selection frequency, main
+		 * category and category agreement.
+		 */
+		public void write(String file) throws IOException
+		{
+			try (BufferedWriter writer = new BufferedWriter(new FileWriter(file)))
+			{
+				writer.write("Modulator\tFactor\tTarget\tSelection frequency\tMain category\tCategory agreement");
+
+				for (int row = 0; row < table.size(); row++)
+				{
+					if (selected[row] == 0) continue;
+
+					writer.write("\n" + table.getModulator(row).symbol + "\t" + table.getFactor(row).symbol + "\t" +
+						table.getTarget(row).symbol + "\t" + getFrequency(row) + "\t" + getMainCategory(row) + "\t" +
+						getCategoryAgreement(row));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package org.panda.gem;
+
+import jdk.jfr.*;
+
+/**
+ * Flight recorder event of a pipeline stage, spanning the stage from its start to its end.
+ *
+ * @author Ozgun Babur
+ */
+@Name("org.panda.gem.Stage")
+@Label("GEM Stage")
+@Category("GEM")
+@Description("A stage of a GEM run, such as loading, triplet generation, selection, writing or rendering")
+@StackTrace(false)
+class StageEvent extends Event
+{
+	@Label("Run")
+	String run;
+
+	@Label("Factor")
+	String factor;
+
+	@Label("Study")
+	String study;
+
+	@Label("Stage")
+	String stage;
+
+	@Label("Items In")
+	long itemsIn;
+
+	@Label("Items Out")
+	long itemsOut;
+}
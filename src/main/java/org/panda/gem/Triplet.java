@@ -1,20 +1,18 @@
 package org.panda.gem;
 
 import org.panda.gem.resource.GeneProvider;
+import org.panda.gem.resource.TsvReader;
 import org.panda.utility.ArrayUtil;
 import org.panda.utility.FileUtil;
 import org.panda.utility.Tuple;
-import org.panda.utility.statistics.ErrorFunction;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * Modulator - Factor - Target triplet of genes. This class holds the case counts and other statistics about the
@@ -42,32 +40,23 @@ public class Triplet
 	public Gene T;
 
 	/**
-	 * Frequencies of 8 corner cases.
+	 * Frequencies of 8 corner cases. Frequency of the modulator status i, factor status j and target status k is at
+	 * index i * 4 + j * 2 + k.
 	 */
-	int[][][] f;
+	int[] f;
 
-	/**
-	 * Totals for 4 M-F status.
-	 */
-	int[][] n;
-
-	/**
-	 * Proportions for 4 M-F status.
-	 */
-	double[][] p;
+	// Inferred coefficients of the triplet equation, along with their significances. NaN when not calculated.
 
-	// Inferred coefficients of the triplet equation, along with their significances
-
-	Tuple alphaM;
-	Tuple betaM;
-	Tuple alphaF;
-	Tuple betaF;
-	Tuple gamma;
+	double alphaM = Double.NaN, alphaMP = Double.NaN;
+	double betaM = Double.NaN, betaMP = Double.NaN;
+	double alphaF = Double.NaN, alphaFP = Double.NaN;
+	double betaF = Double.NaN, betaFP = Double.NaN;
+	double gamma = Double.NaN, gammaP = Double.NaN;
 
 	/**
 	 * AlphaF + BetaM
 	 */
-	Tuple aFbM;
+	double aFbM = Double.NaN, aFbMP = Double.NaN;
 
 	/**
 	 * The detected modulation category.
@@ -82,11 +71,22 @@ public class Triplet
 
 		if (hasAllGenes())
 		{
-			initFreqs();
-			initTotalsAndProportions();
+			this.f = new int[8];
+			count(M, F, T, this.f, 0);
 		}
 	}
 
+	/**
+	 * Constructor with already counted frequencies.
+	 */
+	Triplet(Gene m, Gene f, Gene t, int[] freqs)
+	{
+		M = m;
+		F = f;
+		T = t;
+		this.f = freqs;
+	}
+
 	public boolean hasAllGenes()
 	{
 		return M != null && F != null && T != null;
@@ -100,71 +100,116 @@ public class Triplet
 		T = loader.get(token[2]);
 		cat = ModulationCategory.valueOf(token[3]);
 
-		f = new int[2][2][2];
+		f = new int[8];
 
-		int x = 4;
+		for (int i = 0; i < 8; i++)
+		{
+			f[i] = Integer.parseInt(token[i + 4]);
+		}
+	}
+
+	/**
+	 * Constructor with a row of the triplet file.
+	 */
+	Triplet(TsvReader.Row row, GeneProvider loader)
+	{
+		M = loader.get(row.getString(0));
+		F = loader.get(row.getString(1));
+		T = loader.get(row.getString(2));
+		cat = ModulationCategory.valueOf(row.getString(3));
 
-		for (int i = 0; i < 2; i++)
-			for (int j = 0; j < 2; j++)
-				for (int k = 0; k < 2; k++)
-					f[i][j][k] = Integer.parseInt(token[x++]);
+		f = new int[8];
 
-		initTotalsAndProportions();
+		for (int i = 0; i < 8; i++)
+		{
+			f[i] = row.getInt(i + 4);
+		}
 	}
 
 	/**
-	 * Gets the coefficients in an array for the modulation categories to evaluate their match.
+	 * Gets the coefficients in an array, in the order used by the modulation categories. This creates new objects at
+	 * each call, and is kept only for compatibility. Coefficients that are not calculated yet have NaN values.
 	 */
 	public Tuple[] getCoefficients()
 	{
-		return new Tuple[]{gamma, alphaF, betaF, betaM, aFbM};
+		return new Tuple[]{new Tuple(gamma, gammaP), new Tuple(alphaF, alphaFP), new Tuple(betaF, betaFP),
+			new Tuple(betaM, betaMP), new Tuple(aFbM, aFbMP)};
 	}
 
-	private void initFreqs()
+	/**
+	 * Counts the 8 corner cases using the tertile bit masks of the genes, and writes them to the given array starting
+	 * from the given offset. Samples in the middle tertile of any of the genes are not in any of the masks, hence they
+	 * are not counted.
+	 */
+	static void count(Gene M, Gene F, Gene T, int[] c, int o)
 	{
-		f = new int[2][2][2];
-		for (int i = 0; i < M.status.length; i++)
+		for (int w = 0; w < M.low.length; w++)
 		{
-			if (M.status[i] < 0 || F.status[i] < 0 || T.status[i] < 0)
-				continue;
-			f[M.status[i]][F.status[i]][T.status[i]]++;
+			long ll = M.low[w] & F.low[w];
+			long lh = M.low[w] & F.high[w];
+			long hl = M.high[w] & F.low[w];
+			long hh = M.high[w] & F.high[w];
+			long tl = T.low[w];
+			long th = T.high[w];
+
+			c[o] += Long.bitCount(ll & tl);
+			c[o + 1] += Long.bitCount(ll & th);
+			c[o + 2] += Long.bitCount(lh & tl);
+			c[o + 3] += Long.bitCount(lh & th);
+			c[o + 4] += Long.bitCount(hl & tl);
+			c[o + 5] += Long.bitCount(hl & th);
+			c[o + 6] += Long.bitCount(hh & tl);
+			c[o + 7] += Long.bitCount(hh & th);
 		}
 	}
 
-	public void initTotalsAndProportions()
+	/**
+	 * Counts the 8 corner cases as in {@link #count(Gene, Gene, Gene, int[], int)}, where each sample is counted as many
+	 * times as its multiplicity. Multiplicities are given as bit planes: bit b of the multiplicity of sample i is bit i
+	 * of planes[b], using the word layout of the tertile masks.
+	 */
+	static void count(Gene M, Gene F, Gene T, long[][] planes, int[] c, int o)
 	{
-		n = new int[2][2];
-		for (int i = 0; i < 2; i++)
-			for (int j = 0; j < 2; j++)
-				n[i][j] = f[i][j][0] + f[i][j][1];
-
-		p = new double[2][2];
-		for (int i = 0; i < 2; i++)
-			for (int j = 0; j < 2; j++)
-				p[i][j] = f[i][j][1] / (double) n[i][j];
+		for (int w = 0; w < M.low.length; w++)
+		{
+			long ll = M.low[w] & F.low[w];
+			long lh = M.low[w] & F.high[w];
+			long hl = M.high[w] & F.low[w];
+			long hh = M.high[w] & F.high[w];
+
+			for (int b = 0; b < planes.length; b++)
+			{
+				long tl = T.low[w] & planes[b][w];
+				long th = T.high[w] & planes[b][w];
+
+				c[o] += Long.bitCount(ll & tl) << b;
+				c[o + 1] += Long.bitCount(ll & th) << b;
+				c[o + 2] += Long.bitCount(lh & tl) << b;
+				c[o + 3] += Long.bitCount(lh & th) << b;
+				c[o + 4] += Long.bitCount(hl & tl) << b;
+				c[o + 5] += Long.bitCount(hl & th) << b;
+				c[o + 6] += Long.bitCount(hh & tl) << b;
+				c[o + 7] += Long.bitCount(hh & th) << b;
+			}
+		}
 	}
 
 	public void initGamma()
 	{
-		double pg = (f[0][0][1] + f[0][1][1] + f[1][0][1] + f[1][1][1]) /
-			(double) (n[0][0] + n[0][1] + n[1][0] + n[1][1]);
-
-		double stdev = Math.sqrt(pg * (1 - pg) * ((1D / n[0][0]) + (1D / n[0][1]) + (1D / n[1][0]) + (1D / n[1][1])));
-
-		gamma = generateTuple(p[1][1] - p[0][1] - p[1][0] + p[0][0], stdev);
+		setCoefficient(Coefficient.GAMMA);
 	}
 
 	public void initBetaM()
 	{
-		betaM = pairwise(1, 1, 0, 1);
+		setCoefficient(Coefficient.BETA_M);
 	}
 
 	public void initOtherCoefficients()
 	{
-		alphaM = pairwise(1, 0, 0, 0);
-		alphaF = pairwise(0, 1, 0, 0);
-		betaF = pairwise(1, 1, 1, 0);
-		aFbM = pairwise(1, 1, 0, 0);
+		setCoefficient(Coefficient.ALPHA_M);
+		setCoefficient(Coefficient.ALPHA_F);
+		setCoefficient(Coefficient.BETA_F);
+		setCoefficient(Coefficient.AF_BM);
 	}
 
 	public void initCategory(double thr)
@@ -172,28 +217,91 @@ public class Triplet
 		cat = ModulationCategory.match(this, thr);
 	}
 
-	private Tuple pairwise(int i, int j, int k, int l)
+	private void setCoefficient(Coefficient coef)
 	{
-		double v = p[i][j] - p[k][l];
-		double pijkl = (f[i][j][1] + f[k][l][1]) / (double) (n[i][j] + n[k][l]);
-		double stdev = Math.sqrt(pijkl * (1 - pijkl) * ((1D / n[i][j]) + (1D / n[k][l])));
-		return generateTuple(v, stdev);
+		double v = coef.value(f, 0);
+		setCoefficient(coef, v, Coefficient.pValue(v, coef.stdev(f, 0)));
 	}
 
-	private Tuple generateTuple(double v, double stdev)
+	/**
+	 * Sets the given coefficient from already calculated value and p-value.
+	 */
+	void setCoefficient(Coefficient coef, double v, double pval)
 	{
-		return new Tuple(v, 1 - ErrorFunction.getSignif(Math.abs(v) / (SQRT2 * stdev)));
+		switch (coef)
+		{
+			case GAMMA: gamma = v; gammaP = pval; break;
+			case BETA_M: betaM = v; betaMP = pval; break;
+			case ALPHA_M: alphaM = v; alphaMP = pval; break;
+			case ALPHA_F: alphaF = v; alphaFP = pval; break;
+			case BETA_F: betaF = v; betaFP = pval; break;
+			case AF_BM: aFbM = v; aFbMP = pval;
+		}
+	}
+
+	/**
+	 * Gets the value of the given coefficient.
+	 */
+	double getValue(Coefficient coef)
+	{
+		switch (coef)
+		{
+			case GAMMA: return gamma;
+			case BETA_M: return betaM;
+			case ALPHA_M: return alphaM;
+			case ALPHA_F: return alphaF;
+			case BETA_F: return betaF;
+			default: return aFbM;
+		}
+	}
+
+	/**
+	 * Gets the p-value of the given coefficient.
+	 */
+	double getPval(Coefficient coef)
+	{
+		switch (coef)
+		{
+			case GAMMA: return gammaP;
+			case BETA_M: return betaMP;
+			case ALPHA_M: return alphaMP;
+			case ALPHA_F: return alphaFP;
+			case BETA_F: return betaFP;
+			default: return aFbMP;
+		}
 	}
 
 	// Section: Static File Operations
 
 	/**
-	 * Loads list of triplets from a file.
+	 * Loads list of triplets from a file. The file can be either tab-delimited or binary (see {@link TripletFile}).
 	 */
 	public static List<Triplet> load(String file) throws IOException
 	{
 		DummyGeneProvider loader = new DummyGeneProvider();
-		return Files.lines(Paths.get(file)).skip(1).map(line -> new Triplet(line, loader)).collect(Collectors.toList());
+		if (TripletFile.isBinary(file)) return TripletFile.load(file, loader);
+
+		TsvReader reader = new TsvReader(file);
+		reader.readHeader();
+		return reader.map(row -> new Triplet(row, loader));
+	}
+
+	/**
+	 * Reads the triplets in a file one at a time, without keeping them in a list. The file can be either tab-delimited
+	 * or binary (see {@link TripletFile}).
+	 */
+	public static void read(String file, Consumer<Triplet> consumer) throws IOException
+	{
+		DummyGeneProvider loader = new DummyGeneProvider();
+		if (TripletFile.isBinary(file))
+		{
+			TripletFile.read(file, loader, consumer);
+			return;
+		}
+
+		TsvReader reader = new TsvReader(file);
+		reader.readHeader();
+		reader.forEach(row -> consumer.accept(new Triplet(row, loader)));
 	}
 
 	/**
@@ -213,15 +321,37 @@ public class Triplet
 		writer.close();
 	}
 
+	/**
+	 * Writes all rows of the triplet table to a file, in the same format with the list of triplets.
+	 */
+	public static void write(TripletTable table, String file) throws IOException
+	{
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		writer.write(FILE_HEADER);
+		for (int row = 0; row < table.size(); row++)
+		{
+			writer.write("\n" + toString(table.getModulator(row), table.getFactor(row), table.getTarget(row),
+				table.getCategory(row), table.counts, row * 8));
+		}
+		writer.close();
+	}
 
 	@Override
 	public String toString()
+	{
+		return toString(M, F, T, cat, f, 0);
+	}
+
+	/**
+	 * Generates the line of the triplet in the triplet file.
+	 */
+	private static String toString(Gene M, Gene F, Gene T, ModulationCategory cat, int[] f, int o)
 	{
 		StringBuilder sb = new StringBuilder(ArrayUtil.getString("\t", M.symbol, F.symbol, T.symbol, cat));
-		for (int i = 0; i < 2; i++)
-			for (int j = 0; j < 2; j++)
-				for (int k = 0; k < 2; k++)
-					sb.append("\t").append(f[i][j][k]);
+		for (int i = 0; i < 8; i++)
+		{
+			sb.append("\t").append(f[o + i]);
+		}
 		return sb.toString();
 	}
 
@@ -232,20 +362,20 @@ public class Triplet
 
 	public static class DummyGeneProvider implements GeneProvider
 	{
-		private Map<String, Gene> cache = new HashMap<>();
+		private Map<String, Gene> cache = new ConcurrentHashMap<>();
 
 		@Override
 		public Gene get(String symbol)
 		{
-			if (!cache.containsKey(symbol)) cache.put(symbol, new Gene(symbol, null));
-			return cache.get(symbol);
+			return cache.computeIfAbsent(symbol, s -> new Gene(s, null));
 		}
 	}
 
 	@Override
 	public int hashCode()
 	{
-		return M.symbol.hashCode() + F.symbol.hashCode() + T.symbol.hashCode() + (cat == null ? 0 : cat.hashCode());
+		return ((M.symbol.hashCode() * 31 + F.symbol.hashCode()) * 31 + T.symbol.hashCode()) * 31 +
+			(cat == null ? 0 : cat.ordinal() + 1);
 	}
 
 	@Override
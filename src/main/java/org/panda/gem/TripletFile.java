@@ -0,0 +1,250 @@
+package org.panda.gem;
+
+import org.panda.gem.resource.GeneProvider;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Binary format for triplet result files. It is more compact and much faster to read and write than the tab-delimited
+ * format, and both can be written and read as a stream, without keeping all triplets in memory.
+ *
+ * After the header, the file is a sequence of records, each starting with a tag byte. A symbol record defines the next
+ * symbol of the dictionary, and it is written right before the first row that uses the symbol. A row record has a
+ * fixed width and refers to its genes with their indices in the dictionary.
+ *
+ * Format, all numbers in big-endian:
+ * <pre>
+ * int     magic number
+ * int     format version
+ * records, one of:
+ *   byte 0, UTF                  a symbol, indexed in the order of definition
+ *   byte 1, 3 int, 8 int, byte,  a row: modulator, factor and target symbol indices, the 8 corner counts, the
+ *           6 double             category ordinal or -1, and p-values of the coefficients in their ordinal order
+ * </pre>
+ *
+ * @author Ozgun Babur
+ */
+public class TripletFile
+{
+	/**
+	 * Magic number at the beginning of the binary triplet files.
+	 */
+	public static final int MAGIC = 0x47454D54;
+
+	/**
+	 * Version of the binary format.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Suggested extension for the binary triplet files.
+	 */
+	public static final String EXTENSION = ".gemt";
+
+	private static final byte SYMBOL = 0;
+	private static final byte ROW = 1;
+
+	/**
+	 * Tells if the given file is a binary triplet file.
+	 */
+	public static boolean isBinary(String file) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+		{
+			return in.readInt() == MAGIC;
+		}
+		catch (EOFException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the triplets to a binary file.
+	 */
+	public static void write(List<Triplet> trips, String file) throws IOException
+	{
+		try (Writer writer = new Writer(file))
+		{
+			for (Triplet t : trips)
+			{
+				writer.write(t);
+			}
+		}
+	}
+
+	/**
+	 * Writes all rows of the triplet table to a binary file.
+	 */
+	public static void write(TripletTable table, String file) throws IOException
+	{
+		try (Writer writer = new Writer(file))
+		{
+			for (int row = 0; row < table.size(); row++)
+			{
+				writer.write(table, row);
+			}
+		}
+	}
+
+	/**
+	 * Loads all triplets in a binary file.
+	 */
+	public static List<Triplet> load(String file, GeneProvider loader) throws IOException
+	{
+		List<Triplet> trips = new ArrayList<>();
+		read(file, loader, trips::add);
+		return trips;
+	}
+
+	/**
+	 * Reads the triplets in a binary file one by one, and passes them to the consumer. Values of the coefficients are
+	 * calculated from the counts.
+	 * @param file the binary triplet file
+	 * @param loader provider of the genes of the symbols
+	 * @param consumer receives the triplets in the order of the file
+	 */
+	public static void read(String file, GeneProvider loader, Consumer<Triplet> consumer) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16)))
+		{
+			if (in.readInt() != MAGIC) throw new IOException("Not a binary triplet file: " + file);
+			int version = in.readInt();
+			if (version != VERSION) throw new IOException("Unsupported binary triplet file version: " + version);
+
+			List<Gene> genes = new ArrayList<>();
+			Coefficient[] coefs = Coefficient.values();
+			int categories = ModulationCategory.values().length;
+
+			for (int tag = in.read(); tag >= 0; tag = in.read())
+			{
+				if (tag == SYMBOL)
+				{
+					genes.add(loader.get(in.readUTF()));
+				}
+				else if (tag == ROW)
+				{
+					Gene m = genes.get(in.readInt());
+					Gene f = genes.get(in.readInt());
+					Gene t = genes.get(in.readInt());
+
+					int[] counts = new int[8];
+					for (int i = 0; i < 8; i++)
+					{
+						counts[i] = in.readInt();
+					}
+
+					Triplet trip = new Triplet(m, f, t, counts);
+					byte cat = in.readByte();
+					if (cat < -1 || cat >= categories)
+					{
+						throw new IOException("Invalid modulation category " + cat + " in " + file);
+					}
+					trip.cat = ModulationCategory.get(cat);
+
+					for (Coefficient coef : coefs)
+					{
+						double p = in.readDouble();
+						if (!Double.isNaN(p)) trip.setCoefficient(coef, coef.value(counts, 0), p);
+					}
+
+					consumer.accept(trip);
+				}
+				else throw new IOException("Unknown record type " + tag + " in " + file);
+			}
+		}
+	}
+
+	/**
+	 * Streaming writer of a binary triplet file.
+	 */
+	public static class Writer implements Closeable
+	{
+		private final DataOutputStream out;
+
+		/**
+		 * Indices of the symbols that are already defined in the file.
+		 */
+		private final Map<String, Integer> dictionary;
+
+		public Writer(String file) throws IOException
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			dictionary = new HashMap<>();
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+		}
+
+		/**
+		 * Writes a triplet.
+		 */
+		public void write(Triplet t) throws IOException
+		{
+			int m = symbol(t.M.symbol);
+			int f = symbol(t.F.symbol);
+			int tar = symbol(t.T.symbol);
+
+			writeRow(m, f, tar, t.f, 0, t.cat == null ? -1 : t.cat.ordinal());
+			for (Coefficient coef : Coefficient.values())
+			{
+				out.writeDouble(t.getPval(coef));
+			}
+		}
+
+		/**
+		 * Writes a row of the triplet table.
+		 */
+		public void write(TripletTable table, int row) throws IOException
+		{
+			int m = symbol(table.getModulator(row).symbol);
+			int f = symbol(table.getFactor(row).symbol);
+			int t = symbol(table.getTarget(row).symbol);
+
+			writeRow(m, f, t, table.counts, row * 8, table.cat[row]);
+			for (int i = 0; i < TripletTable.COEF_SIZE; i++)
+			{
+				out.writeDouble(table.pval[row * TripletTable.COEF_SIZE + i]);
+			}
+		}
+
+		private void writeRow(int m, int f, int t, int[] counts, int o, int cat) throws IOException
+		{
+			out.writeByte(ROW);
+			out.writeInt(m);
+			out.writeInt(f);
+			out.writeInt(t);
+			for (int i = 0; i < 8; i++)
+			{
+				out.writeInt(counts[o + i]);
+			}
+			out.writeByte(cat);
+		}
+
+		/**
+		 * Gets the index of the symbol, and defines it in the file first if it is new.
+		 */
+		private int symbol(String symbol) throws IOException
+		{
+			Integer index = dictionary.get(symbol);
+			if (index == null)
+			{
+				index = dictionary.size();
+				dictionary.put(symbol, index);
+				out.writeByte(SYMBOL);
+				out.writeUTF(symbol);
+			}
+			return index;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package org.panda.gem;
+
+import java.util.*;
+
+/**
+ * A column-oriented collection of triplets. Instead of creating an object graph for each triplet, this class keeps the
+ * gene indices, the 8 corner counts, the coefficients and their p-values in flat primitive arrays. Triplet objects are
+ * created only when needed, usually for the significant rows.
+ *
+ * @author Ozgun Babur
+ */
+public class TripletTable
+{
+	/**
+	 * Number of coefficients kept for each row.
+	 */
+	static final int COEF_SIZE = Coefficient.values().length;
+
+	/**
+	 * Genes used in the table. Rows refer to genes with their index in this list.
+	 */
+	private List<Gene> genes;
+
+	/**
+	 * Map from a gene to its index in the genes list.
+	 */
+	private Map<Gene, Integer> geneIndex;
+
+	/**
+	 * Number of rows.
+	 */
+	private int size;
+
+	/**
+	 * Gene indices of the modulators.
+	 */
+	int[] mod;
+
+	/**
+	 * Gene indices of the factors.
+	 */
+	int[] fac;
+
+	/**
+	 * Gene indices of the targets.
+	 */
+	int[] tar;
+
+	/**
+	 * 8 corner counts of each row, ordered as in {@link Triplet#f}.
+	 */
+	int[] counts;
+
+	/**
+	 * Coefficient values of each row, indexed with row * COEF_SIZE + coefficient ordinal. NaN if not calculated.
+	 */
+	double[] val;
+
+	/**
+	 * Coefficient p-values of each row, indexed with row * COEF_SIZE + coefficient ordinal. NaN if not calculated.
+	 */
+	double[] pval;
+
+	/**
+	 * Ordinal of the modulation category of each row, or -1 if no category is assigned.
+	 */
+	byte[] cat;
+
+	/**
+	 * Multiplicities of the samples as bit planes if the table is counted on a resample, otherwise null.
+	 * @see #resample(long[][])
+	 */
+	long[][] planes;
+
+	public TripletTable()
+	{
+		this(16);
+	}
+
+	public TripletTable(int capacity)
+	{
+		genes = new ArrayList<>();
+		geneIndex = new HashMap<>();
+		allocate(Math.max(capacity, 1));
+	}
+
+	/**
+	 * Creates the table from existing triplets. Triplets without all genes are skipped.
+	 */
+	public TripletTable(Collection<Triplet> trips)
+	{
+		this(trips.size());
+
+		for (Triplet t : trips)
+		{
+			if (!t.hasAllGenes()) continue;
+
+			int row = addRow(t.M, t.F, t.T);
+			System.arraycopy(t.f, 0, counts, row * 8, 8);
+			if (t.cat != null) cat[row] = (byte) t.cat.ordinal();
+		}
+	}
+
+	private void allocate(int capacity)
+	{
+		mod = new int[capacity];
+		fac = new int[capacity];
+		tar = new int[capacity];
+		counts = new int[capacity * 8];
+		val = new double[capacity * COEF_SIZE];
+		pval = new double[capacity * COEF_SIZE];
+		cat = new byte[capacity];
+		Arrays.fill(val, Double.NaN);
+		Arrays.fill(pval, Double.NaN);
+		Arrays.fill(cat, (byte) -1);
+	}
+
+	private void ensureCapacity(int capacity)
+	{
+		if (capacity <= mod.length) return;
+
+		int oldCap = mod.length;
+		int newCap = Math.max(capacity, oldCap * 2);
+
+		mod = Arrays.copyOf(mod, newCap);
+		fac = Arrays.copyOf(fac, newCap);
+		tar = Arrays.copyOf(tar, newCap);
+		counts = Arrays.copyOf(counts, newCap * 8);
+		val = Arrays.copyOf(val, newCap * COEF_SIZE);
+		pval = Arrays.copyOf(pval, newCap * COEF_SIZE);
+		cat = Arrays.copyOf(cat, newCap);
+		Arrays.fill(val, oldCap * COEF_SIZE, val.length, Double.NaN);
+		Arrays.fill(pval, oldCap * COEF_SIZE, pval.length, Double.NaN);
+		Arrays.fill(cat, oldCap, newCap, (byte) -1);
+	}
+
+	private int indexOf(Gene gene)
+	{
+		Integer index = geneIndex.get(gene);
+		if (index == null)
+		{
+			index = genes.size();
+			genes.add(gene);
+			geneIndex.put(gene, index);
+		}
+		return index;
+	}
+
+	private int addRow(Gene m, Gene f, Gene t)
+	{
+		ensureCapacity(size + 1);
+		mod[size] = indexOf(m);
+		fac[size] = indexOf(f);
+		tar[size] = indexOf(t);
+		return size++;
+	}
+
+	/**
+	 * Adds a triplet of discretized genes and counts its corner cases. The triplet is not added if any of the genes is
+	 * null.
+	 * @return index of the new row, or -1 if not added
+	 */
+	public int add(Gene m, Gene f, Gene t)
+	{
+		if (m == null || f == null || t == null) return -1;
+
+		int row = addRow(m, f, t);
+		Triplet.count(m, f, t, counts, row * 8);
+		return row;
+	}
+
+	/**
+	 * Number of rows in the table.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	public Gene getModulator(int row)
+	{
+		return genes.get(mod[row]);
+	}
+
+	public Gene getFactor(int row)
+	{
+		return genes.get(fac[row]);
+	}
+
+	public Gene getTarget(int row)
+	{
+		return genes.get(tar[row]);
+	}
+
+	public ModulationCategory getCategory(int row)
+	{
+		return ModulationCategory.get(cat[row]);
+	}
+
+	void setCategory(int row, ModulationCategory category)
+	{
+		cat[row] = category == null ? -1 : (byte) category.ordinal();
+	}
+
+	/**
+	 * Calculates the given coefficient of the given row.
+	 */
+	void compute(int row, Coefficient coef)
+	{
+		coef.compute(counts, row * 8, val, pval, row * COEF_SIZE + coef.ordinal());
+	}
+
+	/**
+	 * Gets the given coefficient of the given row from the given cache, which calculates it if needed.
+	 */
+	void compute(int row, Coefficient coef, CoefficientCache cache)
+	{
+		if (cache == null) compute(row, coef);
+		else cache.compute(counts, row * 8, coef, val, pval, row * COEF_SIZE + coef.ordinal());
+	}
+
+	double getValue(int row, Coefficient coef)
+	{
+		return val[row * COEF_SIZE + coef.ordinal()];
+	}
+
+	double getPval(int row, Coefficient coef)
+	{
+		return pval[row * COEF_SIZE + coef.ordinal()];
+	}
+
+	/**
+	 * Creates a triplet object for the given row, with the calculated coefficients and category.
+	 */
+	public Triplet toTriplet(int row)
+	{
+		Triplet t = new Triplet(getModulator(row), getFactor(row), getTarget(row),
+			Arrays.copyOfRange(counts, row * 8, row * 8 + 8));
+
+		for (Coefficient coef : Coefficient.values())
+		{
+			int x = row * COEF_SIZE + coef.ordinal();
+			if (!Double.isNaN(pval[x])) t.setCoefficient(coef, val[x], pval[x]);
+		}
+
+		t.cat = getCategory(row);
+		return t;
+	}
+
+	/**
+	 * Creates triplet objects for the given rows.
+	 */
+	public List<Triplet> toTriplets(int[] rows)
+	{
+		List<Triplet> trips = new ArrayList<>(rows.length);
+		for (int row : rows)
+		{
+			trips.add(toTriplet(row));
+		}
+		return trips;
+	}
+
+	/**
+	 * Creates triplet objects for all rows.
+	 */
+	public List<Triplet> toTriplets()
+	{
+		List<Triplet> trips = new ArrayList<>(size);
+		for (int row = 0; row < size; row++)
+		{
+			trips.add(toTriplet(row));
+		}
+		return trips;
+	}
+
+	/**
+	 * Creates a new table with only the given rows of this table.
+	 */
+	public TripletTable subset(int[] rows)
+	{
+		TripletTable sub = new TripletTable(rows.length);
+
+		for (int row : rows)
+		{
+			int r = sub.addRow(getModulator(row), getFactor(row), getTarget(row));
+			System.arraycopy(counts, row * 8, sub.counts, r * 8, 8);
+			System.arraycopy(val, row * COEF_SIZE, sub.val, r * COEF_SIZE, COEF_SIZE);
+			System.arraycopy(pval, row * COEF_SIZE, sub.pval, r * COEF_SIZE, COEF_SIZE);
+			sub.cat[r] = cat[row];
+		}
+		sub.planes = planes;
+		return sub;
+	}
+
+	/**
+	 * Creates a new table with the same triplets, counted on a resample of the samples. Discretization of the genes is
+	 * not changed. Multiplicities of the samples are given as bit planes.
+	 * @see Triplet#count(Gene, Gene, Gene, long[][], int[], int)
+	 */
+	TripletTable resample(long[][] planes)
+	{
+		TripletTable rep = new TripletTable(size);
+		rep.genes.addAll(genes);
+		rep.geneIndex.putAll(geneIndex);
+		System.arraycopy(mod, 0, rep.mod, 0, size);
+		System.arraycopy(fac, 0, rep.fac, 0, size);
+		System.arraycopy(tar, 0, rep.tar, 0, size);
+		rep.size = size;
+		rep.planes = planes;
+
+		for (int row = 0; row < size; row++)
+		{
+			Triplet.count(getModulator(row), getFactor(row), getTarget(row), planes, rep.counts, row * 8);
+		}
+		return rep;
+	}
+}
@@ -1,12 +1,10 @@
 package org.panda.gem.resource;
 
 import org.panda.gem.Triplet;
+import org.panda.gem.TripletTable;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * Generates triplets based on the user-provided factor, interacting proteins, and targets.
@@ -21,20 +19,28 @@ public class CustomTripletMaker
 	public List<Triplet> generateForFactor(String factor, Set<String> mods, Set<String> tars,
 		GeneProvider loader)
 	{
-		if (loader.get(factor) == null) return Collections.emptyList();
+		return generateTableForFactor(factor, mods, tars, loader).toTriplets();
+	}
+
+	/**
+	 * Generates custom triplets for the given factor, in a triplet table.
+	 */
+	public TripletTable generateTableForFactor(String factor, Set<String> mods, Set<String> tars,
+		GeneProvider loader)
+	{
+		TripletTable table = new TripletTable();
+		if (loader.get(factor) == null) return table;
 
 		// Don't use the modulators that are also targets
 		mods.removeAll(tars);
 		mods.remove(factor);
 		tars.remove(factor);
 
-		List<Triplet> trips = new ArrayList<>();
-
 		mods.stream().filter(m -> loader.get(m) != null).forEach(m ->
 			tars.stream().filter(t -> loader.get(t) != null).forEach(t ->
-				trips.add(new Triplet(loader.get(m), loader.get(factor), loader.get(t)))));
+				table.add(loader.get(m), loader.get(factor), loader.get(t))));
 
-		return trips.stream().filter(Triplet::hasAllGenes).collect(Collectors.toList());
+		return table;
 	}
 
 	/**
@@ -43,17 +49,25 @@ public class CustomTripletMaker
 	public List<Triplet> generateForFactorAndModulator(String factor, String modulator, Set<String> tars,
 		GeneProvider loader)
 	{
-		if (loader.get(factor) == null) return Collections.emptyList();
+		return generateTableForFactorAndModulator(factor, modulator, tars, loader).toTriplets();
+	}
+
+	/**
+	 * Generates custom triplets for the given factor and modulator, in a triplet table.
+	 */
+	public TripletTable generateTableForFactorAndModulator(String factor, String modulator, Set<String> tars,
+		GeneProvider loader)
+	{
+		TripletTable table = new TripletTable();
+		if (loader.get(factor) == null) return table;
 
 		// Don't use the modulators that are also targets
 		tars.remove(factor);
 		tars.remove(modulator);
 
-		List<Triplet> trips = new ArrayList<>();
-
 		tars.stream().filter(t -> loader.get(t) != null).forEach(t ->
-				trips.add(new Triplet(loader.get(modulator), loader.get(factor), loader.get(t))));
+				table.add(loader.get(modulator), loader.get(factor), loader.get(t)));
 
-		return trips.stream().filter(Triplet::hasAllGenes).collect(Collectors.toList());
+		return table;
 	}
 }
@@ -0,0 +1,241 @@
+package org.panda.gem.resource;
+
+import org.panda.gem.PipelineMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of the loaded expression datasets, for sharing them between analyses that run in the same process. Each
+ * dataset is loaded once: the first analysis that requests it loads it, and the others requesting the same dataset
+ * meanwhile wait for that loader. Datasets are identified with the canonical path of their file or directory, and
+ * the sample subset if there is one, hence different paths to the same file map to the same dataset.
+ *
+ * The loaders are shared, hence their genes are shared too. This is safe since the loaders can be used from multiple
+ * threads and the genes are not modified after loading. If loading a dataset fails, the exception is passed to the
+ * waiting analyses, and the dataset is removed from the registry so that it can be tried again.
+ *
+ * The analyses that will use a dataset can be announced in advance with {@link #reserve(Object)}, each releasing it
+ * with {@link #release(Object)} when it is done. A dataset is removed from the registry when its last reservation is
+ * released, so that its memory can be reclaimed while other analyses continue. Datasets that are not reserved stay in
+ * the registry until it is cleared.
+ *
+ * @author Ozgun Babur
+ */
+public class DatasetRegistry
+{
+	/**
+	 * Map from the dataset key to the pending or completed loading of the dataset.
+	 */
+	private final ConcurrentHashMap<Object, Future<GeneProvider>> map;
+
+	/**
+	 * Map from the dataset key to the number of its reservations that are not released yet.
+	 */
+	private final ConcurrentHashMap<Object, Integer> reservations;
+
+	/**
+	 * Number of the started dataset loads.
+	 */
+	private final AtomicInteger loads;
+
+	public DatasetRegistry()
+	{
+		this.map = new ConcurrentHashMap<>();
+		this.reservations = new ConcurrentHashMap<>();
+		this.loads = new AtomicInteger();
+	}
+
+	/**
+	 * Gets the loader of the given custom expression file. Binary files are loaded with the
+	 * {@link MappedExpressionLoader}, and text files with the {@link SimpleFileExpressionLoader}.
+	 */
+	public GeneProvider getExpression(String filename) throws IOException
+	{
+		return getExpression(filename, false);
+	}
+
+	/**
+	 * Gets the loader of the given custom expression file.
+	 * @param filename the expression file
+	 * @param lazy whether to read the rows of a text file only when their genes are requested. Binary files are always
+	 * read this way.
+	 */
+	public GeneProvider getExpression(String filename, boolean lazy) throws IOException
+	{
+		return getExpression(filename, lazy, null);
+	}
+
+	/**
+	 * Gets the loader of the given custom expression file, recording its discretization in the given metrics if it
+	 * is loaded by this call.
+	 * @param filename the expression file
+	 * @param lazy whether to read the rows of a text file only when their genes are requested
+	 * @param metrics metrics of the requesting analysis, or null
+	 */
+	public GeneProvider getExpression(String filename, boolean lazy, PipelineMetrics metrics) throws IOException
+	{
+		return get(getExpressionKey(filename, lazy), () ->
+			MappedExpressionLoader.isBinary(filename) ? new MappedExpressionLoader(filename) :
+				new SimpleFileExpressionLoader(filename, lazy, metrics));
+	}
+
+	/**
+	 * Gets the loader of the given TCGA study, limited to the given samples.
+	 * @param directory directory of the study
+	 * @param sampleSubset samples to use, or null to use all
+	 */
+	public GeneProvider getTCGA(String directory, Set<String> sampleSubset) throws IOException
+	{
+		return get(getTCGAKey(directory, sampleSubset), () -> new TCGAExpressionLoader(directory, sampleSubset));
+	}
+
+	/**
+	 * Gets the key of the given custom expression file, to use in reservations.
+	 * @param filename the expression file
+	 * @param lazy the loading mode, as given to {@link #getExpression(String, boolean)}
+	 */
+	public Object getExpressionKey(String filename, boolean lazy) throws IOException
+	{
+		// The loading mode does not change how binary files are read
+		boolean lazyText = lazy && !MappedExpressionLoader.isBinary(filename);
+		return Arrays.asList("expression", canonical(filename), lazyText);
+	}
+
+	/**
+	 * Gets the key of the given TCGA study, limited to the given samples, to use in reservations.
+	 * @param directory directory of the study
+	 * @param sampleSubset samples to use, or null to use all
+	 */
+	public Object getTCGAKey(String directory, Set<String> sampleSubset) throws IOException
+	{
+		List<String> samples = null;
+		if (sampleSubset != null)
+		{
+			samples = new ArrayList<>(sampleSubset);
+			samples.sort(null);
+		}
+
+		return Arrays.asList("tcga", canonical(directory), samples);
+	}
+
+	/**
+	 * Announces an analysis that will use the dataset with the given key. The dataset then stays in the registry until
+	 * all its reservations are released. A null key is ignored.
+	 */
+	public void reserve(Object key)
+	{
+		if (key != null) reservations.merge(key, 1, Integer::sum);
+	}
+
+	/**
+	 * Releases a reservation of the dataset with the given key, and removes the dataset from the registry if this was
+	 * its last reservation. A null key is ignored.
+	 */
+	public void release(Object key)
+	{
+		if (key != null) reservations.computeIfPresent(key, (k, count) ->
+		{
+			if (count > 1) return count - 1;
+			map.remove(k);
+			return null;
+		});
+	}
+
+	/**
+	 * Number of the loaded and loading datasets.
+	 */
+	public int size()
+	{
+		return map.size();
+	}
+
+	/**
+	 * Number of the dataset loads started so far, including the ones that are removed or failed.
+	 */
+	public int getLoads()
+	{
+		return loads.get();
+	}
+
+	/**
+	 * Removes all datasets and reservations from the registry. Analyses that already got a dataset can continue using
+	 * it.
+	 */
+	public void clear()
+	{
+		map.clear();
+		reservations.clear();
+	}
+
+	/**
+	 * Gets the dataset with the given key, or loads it with the given loader if it is not in the registry.
+	 */
+	private GeneProvider get(Object key, Callable<GeneProvider> loader) throws IOException
+	{
+		Future<GeneProvider> future = map.get(key);
+
+		if (future == null)
+		{
+			FutureTask<GeneProvider> task = new FutureTask<>(loader);
+			future = map.putIfAbsent(key, task);
+			if (future == null)
+			{
+				future = task;
+				loads.incrementAndGet();
+				task.run();
+			}
+		}
+
+		try
+		{
+			return getUninterruptibly(future);
+		}
+		catch (ExecutionException e)
+		{
+			map.remove(key, future);
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private static String canonical(String path) throws IOException
+	{
+		return new File(path).getCanonicalPath();
+	}
+
+	/**
+	 * Waits for the future, and keeps the interrupt status of the thread if it is interrupted while waiting.
+	 */
+	private static GeneProvider getUninterruptibly(Future<GeneProvider> future) throws ExecutionException
+	{
+		boolean interrupted = false;
+		try
+		{
+			while (true)
+			{
+				try
+				{
+					return future.get();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		finally
+		{
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package org.panda.gem.resource;
 
+import org.panda.gem.GemFlightRecorder;
 import org.panda.gem.Gene;
 import org.panda.gem.ModPrint;
 import org.panda.gem.Selector;
@@ -7,10 +8,12 @@ import org.panda.gem.Triplet;
 import org.panda.utility.ArrayUtil;
 import org.panda.utility.statistics.Summary;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class is designed for using GEO files in GEM analysis. It specifically handles the expO dataset in GEO. The user
@@ -35,17 +38,17 @@ public class GEOFromFileLoader implements GeneProvider
 	/**
 	 * Cache for not creating redundant genes.
 	 */
-	private Map<String, Gene> cache;
+	private final GeneCache cache;
 
 	/**
-	 * Map from row ID to the value array.
+	 * Map from row ID to the gene symbols of the row. Only the rows with a symbol are kept.
 	 */
-	private Map<String, double[]> id2vals;
+	private Map<String, String[]> id2syms;
 
 	/**
-	 * Map from gene symbol to related row IDs.
+	 * Map from gene symbol to the row with the highest variance among the rows of the symbol.
 	 */
-	private Map<String, Set<String>> sym2IDs;
+	private Map<String, Probe> sym2probe;
 
 	/**
 	 * Constructor with two necessary GEO files.
@@ -56,98 +59,131 @@ public class GEOFromFileLoader implements GeneProvider
 		this.valuesFile = valuesFile;
 		readPlatform();
 		readValues();
-		cache = new HashMap<>();
+		cache = new GeneCache();
+		GemFlightRecorder.register(cache, valuesFile);
 	}
 
 	/**
-	 * Reads the platform file and prepares the mapping of symbols to related row IDs.
+	 * Reads the platform file and prepares the mapping of row IDs to related symbols. The column of the symbols is
+	 * found in the header line, and the rows after it are read in the same pass.
 	 */
 	private void readPlatform() throws IOException
 	{
-		sym2IDs = new HashMap<>();
+		id2syms = new HashMap<>();
+		int symbolIndex = -1;
 
-		String[] header = Files.lines(Paths.get(platformFile)).filter(l -> l.startsWith("ID\t")).map(l -> l.split("\t"))
-			.findFirst().get();
-
-		int symbolIndex = ArrayUtil.indexOf(header, "Gene Symbol");
-
-		Files.lines(Paths.get(platformFile)).filter(l -> !l.isEmpty()).filter(l -> !l.startsWith("!"))
-			.filter(l -> !l.startsWith("^")).filter(l -> !l.startsWith("ID\t")).map(l -> l.split("\t"))
-			.filter(t -> t.length > symbolIndex).filter(t -> !t[symbolIndex].isEmpty()).forEach(t ->
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(platformFile)))
 		{
-			String id = t[0];
-			String[] syms = t[symbolIndex].split(" /// ");
-			for (String sym : syms)
+			for (String l = reader.readLine(); l != null; l = reader.readLine())
 			{
-				if (!sym2IDs.containsKey(sym)) sym2IDs.put(sym, new HashSet<>());
-				sym2IDs.get(sym).add(id);
+				if (symbolIndex < 0)
+				{
+					if (l.startsWith("ID\t"))
+					{
+						symbolIndex = ArrayUtil.indexOf(l.split("\t"), "Gene Symbol");
+						if (symbolIndex < 0) throw new IOException("No Gene Symbol column in " + platformFile);
+					}
+					continue;
+				}
+
+				if (l.isEmpty() || l.startsWith("!") || l.startsWith("^")) continue;
+
+				String[] t = l.split("\t");
+				if (t.length > symbolIndex && !t[symbolIndex].isEmpty())
+				{
+					id2syms.put(t[0], t[symbolIndex].split(" /// "));
+				}
 			}
-		});
+		}
 	}
 
 	/**
-	 * Reads the values file and prepared the id to value array mapping.
+	 * Reads the values file and selects the row with the highest variance for each gene symbol. Rows without a symbol
+	 * are not parsed, and the rows that are not selected are not kept.
 	 */
 	private void readValues() throws IOException
 	{
-		id2vals = new HashMap<>();
+		ConcurrentHashMap<String, Probe> selected = new ConcurrentHashMap<>();
+
+		TsvReader reader = new TsvReader(valuesFile);
+		reader.setSkipPrefixes("!", "\"ID_REF\"\t");
 
-		Files.lines(Paths.get(valuesFile)).filter(l -> !l.startsWith("!")).filter(l -> !l.isEmpty())
-			.filter(l -> !l.startsWith("\"ID_REF\"\t")).map(l -> l.split("\t")).forEach(t ->
+		reader.map(row ->
 		{
-			double[] v = new double[t.length - 1];
-			String id = t[0].replaceAll("\"", "");
-			for (int i = 1; i < t.length; i++)
+			String id = row.getUnquoted(0);
+			String[] syms = id2syms.get(id);
+			if (syms == null) return null;
+
+			Probe probe = new Probe(id, row.getDoubles(1));
+			for (String sym : syms)
 			{
-				v[i - 1] = Double.valueOf(t[i]);
+				selected.merge(sym, probe, Probe::better);
 			}
-			id2vals.put(id, v);
+			return null;
 		});
+
+		sym2probe = new HashMap<>(selected);
 	}
 
 	@Override
 	public Gene get(String symbol)
 	{
-		if (cache.containsKey(symbol)) return cache.get(symbol);
-
-		if (sym2IDs.containsKey(symbol))
+		return cache.get(symbol, sym ->
 		{
-			List<double[]> valList = new ArrayList<>();
-			for (String id : sym2IDs.get(symbol))
-			{
-				valList.add(id2vals.get(id));
-			}
+			Probe probe = sym2probe.get(sym);
+			return probe == null ? null : new Gene(sym, probe.vals);
+		});
+	}
 
-			Gene gene = new Gene(symbol, selectHighestVariation(valList));
-			cache.put(symbol, gene);
-			return gene;
-		}
+	/**
+	 * Limits the memory used by the cached genes. Genes that were not used recently are evicted when the estimated size
+	 * of the cached genes exceeds the budget, and they are loaded again if requested later. This can be called while
+	 * genes are being requested. See {@link GeneCache} for the effects of eviction.
+	 * @param maxBytes maximum total estimated size of the cached genes in bytes
+	 */
+	@Override
+	public void setMemoryBudget(long maxBytes)
+	{
+		cache.setMemoryBudget(maxBytes);
+	}
 
-		cache.put(symbol, null);
-		return null;
+	/**
+	 * Gets the cache, for its statistics.
+	 */
+	public GeneCache getCache()
+	{
+		return cache;
 	}
 
 	/**
-	 * For each gene symbol, the row with highest variance is selected. This method selects that row.
+	 * A row of the values file with its variance.
 	 */
-	private double[] selectHighestVariation(List<double[]> list)
+	private static class Probe
 	{
-		if (list.size() == 1) return list.get(0);
+		final String id;
+		final double[] vals;
 
-		double maxVar = 0;
-		double[] max = null;
+		/**
+		 * Variance of the values. Rows with an undefined variance are never preferred.
+		 */
+		final double var;
 
-		for (double[] vals : list)
+		Probe(String id, double[] vals)
 		{
-			double var = Summary.variance(vals);
-
-			if (var > maxVar)
-			{
-				maxVar = var;
-				max = vals;
-			}
+			this.id = id;
+			this.vals = vals;
+			double v = Summary.variance(vals);
+			this.var = Double.isNaN(v) ? Double.NEGATIVE_INFINITY : v;
 		}
 
-		return max;
+		/**
+		 * Selects the row with the higher variance. Ties are broken by the row ID, so that the selection does not
+		 * depend on the order of reading.
+		 */
+		static Probe better(Probe p1, Probe p2)
+		{
+			if (p1.var != p2.var) return p1.var > p2.var ? p1 : p2;
+			return p1.id.compareTo(p2.id) <= 0 ? p1 : p2;
+		}
 	}
 }
@@ -0,0 +1,308 @@
+package org.panda.gem.resource;
+
+import org.panda.gem.Gene;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Cache of genes that is safe to use from multiple threads. Each symbol is loaded exactly once: the first thread that
+ * requests a symbol loads it, and other threads requesting the same symbol meanwhile wait for that result. Requests for
+ * other symbols are not blocked. Symbols that cannot be loaded are cached as null.
+ *
+ * If loading a gene throws an exception, the exception is passed to the waiting threads, and the symbol is removed
+ * from the cache so that it can be tried again.
+ *
+ * The cache can be given a memory budget. When the total estimated size of the cached genes exceeds the budget, genes
+ * that were not used recently are evicted. Recency is approximated with the clock algorithm: a hit only marks the gene
+ * as referenced, without locking, and the eviction gives the referenced genes a second chance. An evicted gene is
+ * loaded again when it is requested later.
+ *
+ * Eviction only drops the reference of the cache. A gene that is still held elsewhere, such as by a
+ * {@link org.panda.gem.TripletTable} or a {@link org.panda.gem.Triplet}, is not freed. A gene that is loaded again is a
+ * new instance, and genes are compared by identity. Hence a table that is filled while genes are evicted can index
+ * the same symbol twice, as two genes. The budget should be large enough to hold the genes of one table.
+ *
+ * @author Ozgun Babur
+ */
+public class GeneCache
+{
+	/**
+	 * Estimated size of a cache entry in bytes, excluding the gene.
+	 */
+	private static final int ENTRY_SIZE = 128;
+
+	/**
+	 * Map from gene symbol to the pending or completed loading of the gene.
+	 */
+	private final ConcurrentHashMap<String, Node> map;
+
+	/**
+	 * Maximum total size of the cached genes in bytes.
+	 */
+	private volatile long maxBytes;
+
+	/**
+	 * Loaded genes in the order of their admission, scanned by the eviction. Accessed only while holding its lock.
+	 */
+	private final ArrayDeque<Node> clock;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+	private final AtomicLong residentBytes;
+
+	/**
+	 * Constructor for a cache without a memory budget.
+	 */
+	public GeneCache()
+	{
+		this(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Constructor with the memory budget.
+	 * @param maxBytes maximum total estimated size of the cached genes in bytes
+	 */
+	public GeneCache(long maxBytes)
+	{
+		checkBudget(maxBytes);
+
+		this.maxBytes = maxBytes;
+		this.map = new ConcurrentHashMap<>();
+		this.clock = new ArrayDeque<>();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+		this.residentBytes = new AtomicLong();
+	}
+
+	private static void checkBudget(long maxBytes)
+	{
+		if (maxBytes < 0) throw new IllegalArgumentException("Memory budget cannot be negative: " + maxBytes);
+	}
+
+	/**
+	 * Tells if the cache has a memory budget.
+	 */
+	public boolean isBounded()
+	{
+		return maxBytes != Long.MAX_VALUE;
+	}
+
+	/**
+	 * Changes the memory budget. This is safe while the cache is in use. If the cached genes exceed the new budget,
+	 * they are evicted right away.
+	 * @param maxBytes maximum total estimated size of the cached genes in bytes, or Long.MAX_VALUE for no budget
+	 */
+	public void setMemoryBudget(long maxBytes)
+	{
+		checkBudget(maxBytes);
+		this.maxBytes = maxBytes;
+
+		synchronized (clock)
+		{
+			evict();
+		}
+	}
+
+	/**
+	 * Gets the gene from the cache, or loads it with the given loader if it is not in the cache.
+	 * @param symbol gene symbol
+	 * @param loader function to load the gene, can return null
+	 */
+	public Gene get(String symbol, Function<String, Gene> loader)
+	{
+		Node node = map.get(symbol);
+		Node task = null;
+
+		if (node == null)
+		{
+			task = new Node(symbol, loader);
+			node = map.putIfAbsent(symbol, task);
+			if (node == null) node = task;
+			else task = null;
+		}
+
+		if (task != null)
+		{
+			misses.increment();
+			task.run();
+		}
+		else
+		{
+			hits.increment();
+
+			// Read before writing, so that hits on a referenced gene do not write to shared memory
+			if (!node.referenced) node.referenced = true;
+		}
+
+		Gene gene;
+		try
+		{
+			gene = getUninterruptibly(node);
+		}
+		catch (ExecutionException e)
+		{
+			map.remove(symbol, node);
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+
+		if (task != null) admit(task, gene);
+		return gene;
+	}
+
+	/**
+	 * Records the size of a newly loaded gene, and evicts genes while the budget is exceeded.
+	 */
+	private void admit(Node node, Gene gene)
+	{
+		node.size = ENTRY_SIZE + (gene == null ? 0 : gene.estimateSize());
+
+		synchronized (clock)
+		{
+			clock.addLast(node);
+			residentBytes.addAndGet(node.size);
+			evict();
+		}
+	}
+
+	/**
+	 * Evicts genes while the budget is exceeded. The oldest gene is evicted if it is not referenced since the last
+	 * scan, otherwise it is unmarked and moved to the end. Should be called while holding the lock of the clock.
+	 */
+	private void evict()
+	{
+		while (residentBytes.get() > maxBytes && !clock.isEmpty())
+		{
+			Node node = clock.pollFirst();
+			if (node.referenced)
+			{
+				node.referenced = false;
+				clock.addLast(node);
+				continue;
+			}
+
+			map.remove(node.symbol, node);
+			residentBytes.addAndGet(-node.size);
+			evictions.increment();
+		}
+	}
+
+	/**
+	 * Waits for the future, and keeps the interrupt status of the thread if it is interrupted while waiting.
+	 */
+	private static Gene getUninterruptibly(Future<Gene> future) throws ExecutionException
+	{
+		boolean interrupted = false;
+		try
+		{
+			while (true)
+			{
+				try
+				{
+					return future.get();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		finally
+		{
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Gets the genes that are currently in the cache, excluding the symbols that could not be loaded.
+	 */
+	public Map<String, Gene> getLoaded()
+	{
+		Map<String, Gene> loaded = new HashMap<>();
+		map.forEach((symbol, future) ->
+		{
+			if (future.isDone())
+			{
+				try
+				{
+					Gene gene = future.get();
+					if (gene != null) loaded.put(symbol, gene);
+				}
+				catch (InterruptedException | ExecutionException e)
+				{
+					// Failed loads are not included
+				}
+			}
+		});
+		return loaded;
+	}
+
+	/**
+	 * Number of symbols in the cache, including the ones that could not be loaded.
+	 */
+	public int size()
+	{
+		return map.size();
+	}
+
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+	/**
+	 * Estimated total size of the cached genes in bytes.
+	 */
+	public long getResidentBytes()
+	{
+		return residentBytes.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "hits = " + getHits() + ", misses = " + getMisses() + ", evictions = " + getEvictions() +
+			", size = " + size() + (isBounded() ? ", resident bytes = " + getResidentBytes() : "");
+	}
+
+	/**
+	 * The loading of a gene, its estimated size, and whether it is used since the last scan of the eviction.
+	 */
+	private static class Node extends FutureTask<Gene>
+	{
+		final String symbol;
+
+		/**
+		 * Estimated size in bytes, set when the gene is admitted.
+		 */
+		long size;
+
+		volatile boolean referenced;
+
+		Node(String symbol, Function<String, Gene> loader)
+		{
+			super(() -> loader.apply(symbol));
+			this.symbol = symbol;
+		}
+	}
+}
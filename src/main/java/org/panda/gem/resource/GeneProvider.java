@@ -3,7 +3,8 @@ package org.panda.gem.resource;
 import org.panda.gem.Gene;
 
 /**
- * Interface for any resource that can provide a gene to use in GEM analysis.
+ * Interface for any resource that can provide a gene to use in GEM analysis. Implementations should be safe to call
+ * from multiple threads, and should load each gene only once.
  * @author Ozgun Babur
  */
 public interface GeneProvider
@@ -13,4 +14,13 @@ public interface GeneProvider
 	 * @param symbol HGNC symbol of the gene
 	 */
 	Gene get(String symbol);
+
+	/**
+	 * Limits the memory used by the genes that the provider caches, if it caches them in a {@link GeneCache}. See
+	 * there for the effects of eviction. Does nothing by default.
+	 * @param maxBytes maximum total estimated size of the cached genes in bytes, or Long.MAX_VALUE for no limit
+	 */
+	default void setMemoryBudget(long maxBytes)
+	{
+	}
 }
@@ -0,0 +1,344 @@
+package org.panda.gem.resource;
+
+import org.panda.gem.GemFlightRecorder;
+import org.panda.gem.Gene;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Provides genes from a binary expression file that is memory-mapped. The binary file is generated once from a simple
+ * expression file (see {@link SimpleFileExpressionLoader}) using the {@link #convert(String, String)} method. Opening
+ * the binary file reads only its header, and rows are paged in by the operating system when their genes are requested.
+ *
+ * Format of the binary file, all numbers in big-endian:
+ * <pre>
+ * int     magic number
+ * int     format version
+ * int     number of rows
+ * int     number of samples
+ * int     number of symbols
+ * long    offset of the first row
+ * UTF     sample names, one for each sample
+ * UTF,int symbol and its row index, one for each symbol
+ * rows    each row has the double values of samples, then the low tertile mask words, then the high tertile mask
+ *         words
+ * </pre>
+ *
+ * @author Ozgun Babur
+ */
+public class MappedExpressionLoader implements GeneProvider
+{
+	/**
+	 * Magic number at the beginning of the binary expression files.
+	 */
+	public static final int MAGIC = 0x47454D58;
+
+	/**
+	 * Version of the binary format.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Size of the fixed part of the header in bytes.
+	 */
+	private static final int FIXED_HEADER_SIZE = 28;
+
+	/**
+	 * Sample names.
+	 */
+	private String[] samples;
+
+	/**
+	 * Map from gene symbol to its row index.
+	 */
+	private Map<String, Integer> sym2row;
+
+	/**
+	 * Number of rows in the file.
+	 */
+	private int rowCount;
+
+	/**
+	 * Number of long words in each tertile mask.
+	 */
+	private int words;
+
+	/**
+	 * Size of a row in bytes.
+	 */
+	private int rowSize;
+
+	/**
+	 * Number of rows in each mapped chunk.
+	 */
+	private int rowsPerChunk;
+
+	/**
+	 * Mapped chunks of the rows. Buffers are mapped in chunks because a single buffer cannot exceed 2 GB.
+	 */
+	private MappedByteBuffer[] chunks;
+
+	/**
+	 * Cache for not creating redundant genes.
+	 */
+	private final GeneCache cache;
+
+	/**
+	 * Opens the binary expression file.
+	 */
+	public MappedExpressionLoader(String filename) throws IOException
+	{
+		cache = new GeneCache();
+		GemFlightRecorder.register(cache, filename);
+
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ))
+		{
+			long dataOffset = readHeader(channel);
+			mapRows(channel, dataOffset);
+		}
+	}
+
+	/**
+	 * Reads the header and returns the offset of the first row.
+	 */
+	private long readHeader(FileChannel channel) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+
+		if (in.readInt() != MAGIC) throw new IOException("Not a binary expression file.");
+		int version = in.readInt();
+		if (version != VERSION) throw new IOException("Unsupported binary expression file version: " + version);
+
+		rowCount = in.readInt();
+		samples = new String[in.readInt()];
+		int symbolCount = in.readInt();
+		long dataOffset = in.readLong();
+
+		for (int i = 0; i < samples.length; i++)
+		{
+			samples[i] = in.readUTF();
+		}
+
+		sym2row = new HashMap<>(symbolCount * 2);
+		for (int i = 0; i < symbolCount; i++)
+		{
+			sym2row.put(in.readUTF(), in.readInt());
+		}
+
+		words = Gene.wordCount(samples.length);
+		rowSize = samples.length * 8 + words * 16;
+		rowsPerChunk = Math.max(1, Integer.MAX_VALUE / Math.max(rowSize, 1));
+		chunks = new MappedByteBuffer[rowCount == 0 ? 0 : (rowCount - 1) / rowsPerChunk + 1];
+
+		return dataOffset;
+	}
+
+	/**
+	 * Maps the rows in chunks, each chunk having a whole number of rows.
+	 */
+	private void mapRows(FileChannel channel, long dataOffset) throws IOException
+	{
+		for (int i = 0; i < chunks.length; i++)
+		{
+			long start = dataOffset + (long) i * rowsPerChunk * rowSize;
+			long size = (long) Math.min(rowsPerChunk, rowCount - i * rowsPerChunk) * rowSize;
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		}
+	}
+
+	/**
+	 * Gets the sample names in the order of gene values.
+	 */
+	public String[] getSamples()
+	{
+		return samples;
+	}
+
+	/**
+	 * Gets all gene symbols in the file.
+	 */
+	public Set<String> getSymbols()
+	{
+		return Collections.unmodifiableSet(sym2row.keySet());
+	}
+
+	@Override
+	public Gene get(String symbol)
+	{
+		return cache.get(symbol, sym ->
+		{
+			Integer row = sym2row.get(sym);
+			return row == null ? null : readRow(sym, row);
+		});
+	}
+
+	/**
+	 * Limits the memory used by the cached genes. Genes that were not used recently are evicted when the estimated size
+	 * of the cached genes exceeds the budget, and they are read again from the mapped file if requested later. See
+	 * {@link GeneCache} for the effects of eviction.
+	 * @param maxBytes maximum total estimated size of the cached genes in bytes
+	 */
+	@Override
+	public void setMemoryBudget(long maxBytes)
+	{
+		cache.setMemoryBudget(maxBytes);
+	}
+
+	/**
+	 * Reads the values and the tertile masks at the given row.
+	 */
+	private Gene readRow(String symbol, int row)
+	{
+		ByteBuffer buf = chunks[row / rowsPerChunk].duplicate();
+		buf.position((row % rowsPerChunk) * rowSize);
+
+		double[] vals = new double[samples.length];
+		long[] low = new long[words];
+		long[] high = new long[words];
+
+		buf.asDoubleBuffer().get(vals);
+		buf.position(buf.position() + vals.length * 8);
+		buf.asLongBuffer().get(low);
+		buf.position(buf.position() + words * 8);
+		buf.asLongBuffer().get(high);
+
+		return new Gene(symbol, vals, low, high);
+	}
+
+	/**
+	 * Tells if the given file is a binary expression file.
+	 */
+	public static boolean isBinary(String filename) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new FileInputStream(filename)))
+		{
+			return in.readInt() == MAGIC;
+		}
+		catch (EOFException e)
+		{
+			return false;
+		}
+	}
+
+	// Section: Conversion
+
+	/**
+	 * Converts a simple expression file to the binary format. The expression file is read twice, first for the
+	 * header and the symbols, then for the values, so the whole dataset is never kept in memory. If a symbol occurs
+	 * in more than one row, the last one is used, as in {@link SimpleFileExpressionLoader}.
+	 * @param expFile the tab-delimited expression file
+	 * @param binFile the binary file to write
+	 */
+	public static void convert(String expFile, String binFile) throws IOException
+	{
+		String[] sampleNames;
+		Map<String, Integer> symbols = new LinkedHashMap<>();
+		int[] rowCount = new int[1];
+
+		try (Stream<String> lines = dataLines(expFile))
+		{
+			Iterator<String> iter = lines.iterator();
+			if (!iter.hasNext()) throw new IOException("Expression file has no header: " + expFile);
+
+			String[] header = iter.next().split("\t");
+			sampleNames = Arrays.copyOfRange(header, 1, header.length);
+
+			iter.forEachRemaining(l -> symbols.put(getSymbol(l.substring(0, Math.max(l.indexOf("\t"), 0))),
+				rowCount[0]++));
+		}
+
+		// Write the variable part of the header first to learn its size
+
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		for (String sample : sampleNames)
+		{
+			header.writeUTF(sample);
+		}
+		for (String symbol : symbols.keySet())
+		{
+			header.writeUTF(symbol);
+			header.writeInt(symbols.get(symbol));
+		}
+		header.flush();
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binFile),
+			1 << 16)); Stream<String> lines = dataLines(expFile))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(rowCount[0]);
+			out.writeInt(sampleNames.length);
+			out.writeInt(symbols.size());
+			out.writeLong(FIXED_HEADER_SIZE + headerBytes.size());
+			headerBytes.writeTo(out);
+
+			Iterator<String> iter = lines.skip(1).iterator();
+			while (iter.hasNext())
+			{
+				String[] t = iter.next().split("\t");
+
+				if (t.length - 1 != sampleNames.length) throw new IOException("Row of " + t[0] + " has " +
+					(t.length - 1) + " values, but there are " + sampleNames.length + " samples.");
+
+				double[] v = new double[t.length - 1];
+				for (int i = 1; i < t.length; i++)
+				{
+					v[i - 1] = Double.valueOf(t[i]);
+				}
+
+				Gene gene = new Gene(getSymbol(t[0]), v);
+
+				for (double d : v)
+				{
+					out.writeDouble(d);
+				}
+				for (long w : gene.getLowMask())
+				{
+					out.writeLong(w);
+				}
+				for (long w : gene.getHighMask())
+				{
+					out.writeLong(w);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lines of the expression file, excluding comments and empty lines. First line is the header.
+	 */
+	private static Stream<String> dataLines(String file) throws IOException
+	{
+		return Files.lines(Paths.get(file), StandardCharsets.UTF_8).filter(l -> !l.startsWith("!"))
+			.filter(l -> !l.isEmpty()).filter(l -> !l.startsWith("#"));
+	}
+
+	/**
+	 * Cleans the symbol in the first column of an expression file.
+	 */
+	private static String getSymbol(String s)
+	{
+		String symbol = s.replaceAll("\"", "");
+		if (symbol.contains("|")) symbol = symbol.substring(0, symbol.indexOf("|"));
+		return symbol;
+	}
+
+	/**
+	 * Converts the expression file in the first argument to the binary file in the second argument.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		convert(args[0], args[1]);
+	}
+}
@@ -0,0 +1,316 @@
+package org.panda.gem.resource;
+
+import org.panda.utility.graph.DirectedGraph;
+import org.panda.utility.graph.Graph;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Compact, read-only copy of the Pathway Commons relations that are used for generating triplets. Gene symbols are
+ * indexed with integers, and each relation is kept as an adjacency list in compressed sparse row form: the neighbors of
+ * the symbol at index i are at the positions from offsets[i] to offsets[i + 1] of the neighbors array.
+ *
+ * A snapshot is created once from the graphs and written to a binary file, which is much faster to load than parsing
+ * the graphs again. Snapshots are immutable, hence they can be shared between threads.
+ *
+ * Format of the binary file, all numbers in big-endian:
+ * <pre>
+ * int  magic number
+ * int  format version
+ * int  number of symbols
+ * UTF  symbols, in the order of their indices
+ * then, for each relation, the number of neighbors, the offsets, and the neighbors, as ints
+ * </pre>
+ *
+ * @author Ozgun Babur
+ */
+public class PCGraphSnapshot
+{
+	/**
+	 * Magic number at the beginning of the snapshot files.
+	 */
+	public static final int MAGIC = 0x47454D47;
+
+	/**
+	 * Version of the binary format.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Relations in the snapshot, in the order they are written.
+	 */
+	public enum Relation
+	{
+		/**
+		 * Targets of a factor in the controls-expression-of graph.
+		 */
+		EXPRESSION_TARGET,
+
+		/**
+		 * Neighbors in the in-complex-with and interacts-with graphs.
+		 */
+		INTERACTOR,
+
+		/**
+		 * Upstream neighbors in the controls-state-change-of graph.
+		 */
+		STATE_CHANGE_CONTROLLER
+	}
+
+	/**
+	 * Symbols, indexed.
+	 */
+	private final String[] symbols;
+
+	/**
+	 * Map from symbol to index.
+	 */
+	private final Map<String, Integer> index;
+
+	/**
+	 * Adjacency offsets of each relation.
+	 */
+	private final int[][] offsets;
+
+	/**
+	 * Adjacency neighbors of each relation.
+	 */
+	private final int[][] neighbors;
+
+	private PCGraphSnapshot(String[] symbols, int[][] offsets, int[][] neighbors)
+	{
+		this.symbols = symbols;
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+
+		index = new HashMap<>(symbols.length * 2);
+		for (int i = 0; i < symbols.length; i++)
+		{
+			index.put(symbols[i], i);
+		}
+	}
+
+	/**
+	 * Creates the snapshot of the given graphs.
+	 * @param expGraph factor to target graph
+	 * @param ppiGraph modulator to factor interaction graph
+	 * @param stcGraph modulator to factor state-change graph
+	 */
+	public static PCGraphSnapshot create(DirectedGraph expGraph, Graph ppiGraph, DirectedGraph stcGraph)
+	{
+		Set<String> all = new HashSet<>();
+		all.addAll(expGraph.getSymbols());
+		all.addAll(ppiGraph.getSymbols());
+		all.addAll(stcGraph.getSymbols());
+
+		String[] symbols = all.stream().sorted().toArray(String[]::new);
+		Map<String, Integer> index = new HashMap<>(symbols.length * 2);
+		for (int i = 0; i < symbols.length; i++)
+		{
+			index.put(symbols[i], i);
+		}
+
+		Relation[] relations = Relation.values();
+		int[][] offsets = new int[relations.length][];
+		int[][] neighbors = new int[relations.length][];
+
+		for (Relation relation : relations)
+		{
+			int[] off = new int[symbols.length + 1];
+			List<int[]> lists = new ArrayList<>(symbols.length);
+
+			for (int i = 0; i < symbols.length; i++)
+			{
+				Set<String> neigh;
+				switch (relation)
+				{
+					case EXPRESSION_TARGET: neigh = expGraph.getDownstream(symbols[i]); break;
+					case INTERACTOR: neigh = ppiGraph.getNeighbors(symbols[i]); break;
+					default: neigh = stcGraph.getUpstream(symbols[i]);
+				}
+
+				int[] ids = neigh == null ? new int[0] : neigh.stream().map(index::get).filter(Objects::nonNull)
+					.mapToInt(Integer::intValue).sorted().toArray();
+
+				lists.add(ids);
+				off[i + 1] = off[i] + ids.length;
+			}
+
+			int[] nb = new int[off[symbols.length]];
+			for (int i = 0; i < symbols.length; i++)
+			{
+				System.arraycopy(lists.get(i), 0, nb, off[i], lists.get(i).length);
+			}
+
+			offsets[relation.ordinal()] = off;
+			neighbors[relation.ordinal()] = nb;
+		}
+
+		return new PCGraphSnapshot(symbols, offsets, neighbors);
+	}
+
+	/**
+	 * Gets the neighbors of the symbol in the given relation.
+	 * @return new set of the neighbors, empty if the symbol is not in the snapshot
+	 */
+	public Set<String> getNeighbors(Relation relation, String symbol)
+	{
+		Integer i = index.get(symbol);
+		if (i == null) return new HashSet<>();
+
+		int[] off = offsets[relation.ordinal()];
+		int[] nb = neighbors[relation.ordinal()];
+
+		Set<String> set = new HashSet<>();
+		for (int j = off[i]; j < off[i + 1]; j++)
+		{
+			set.add(symbols[nb[j]]);
+		}
+		return set;
+	}
+
+	/**
+	 * Gets the symbols that have at least one neighbor in the given relation.
+	 */
+	public Set<String> getSymbolsWithNeighbors(Relation relation)
+	{
+		int[] off = offsets[relation.ordinal()];
+
+		Set<String> set = new HashSet<>();
+		for (int i = 0; i < symbols.length; i++)
+		{
+			if (off[i + 1] > off[i]) set.add(symbols[i]);
+		}
+		return set;
+	}
+
+	/**
+	 * Number of symbols in the snapshot.
+	 */
+	public int size()
+	{
+		return symbols.length;
+	}
+
+	// Section: File operations
+
+	/**
+	 * Writes the snapshot to the given file.
+	 */
+	public void write(String file) throws IOException
+	{
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+			1 << 16)))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(symbols.length);
+			for (String symbol : symbols)
+			{
+				out.writeUTF(symbol);
+			}
+
+			for (int r = 0; r < offsets.length; r++)
+			{
+				out.writeInt(neighbors[r].length);
+				for (int v : offsets[r])
+				{
+					out.writeInt(v);
+				}
+				for (int v : neighbors[r])
+				{
+					out.writeInt(v);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the snapshot from the given file.
+	 */
+	public static PCGraphSnapshot read(String file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ))
+		{
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buf.getInt() != MAGIC) throw new IOException("Not a graph snapshot file: " + file);
+			int version = buf.getInt();
+			if (version != VERSION) throw new IOException("Unsupported graph snapshot version: " + version);
+
+			String[] symbols = new String[buf.getInt()];
+
+			DataInputStream in = new DataInputStream(new ByteBufferInputStream(buf));
+			for (int i = 0; i < symbols.length; i++)
+			{
+				symbols[i] = in.readUTF();
+			}
+
+			int relations = Relation.values().length;
+			int[][] offsets = new int[relations][];
+			int[][] neighbors = new int[relations][];
+
+			for (int r = 0; r < relations; r++)
+			{
+				neighbors[r] = new int[buf.getInt()];
+				offsets[r] = new int[symbols.length + 1];
+
+				IntBuffer ints = buf.asIntBuffer();
+				ints.get(offsets[r]);
+				ints.get(neighbors[r]);
+				buf.position(buf.position() + (offsets[r].length + neighbors[r].length) * 4);
+			}
+
+			return new PCGraphSnapshot(symbols, offsets, neighbors);
+		}
+	}
+
+	/**
+	 * Tells if the given file is a graph snapshot file.
+	 */
+	public static boolean isSnapshot(String file) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+		{
+			return in.readInt() == MAGIC;
+		}
+		catch (EOFException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Input stream that reads a byte buffer from its current position, and advances it.
+	 */
+	private static class ByteBufferInputStream extends InputStream
+	{
+		private final ByteBuffer buf;
+
+		ByteBufferInputStream(ByteBuffer buf)
+		{
+			this.buf = buf;
+		}
+
+		@Override
+		public int read()
+		{
+			return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			if (!buf.hasRemaining()) return -1;
+			len = Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+		}
+	}
+}
@@ -2,44 +2,68 @@ package org.panda.gem.resource;
 
 import org.biopax.paxtools.pattern.miner.SIFEnum;
 import org.panda.gem.Triplet;
+import org.panda.gem.TripletTable;
+import org.panda.gem.resource.PCGraphSnapshot.Relation;
 import org.panda.resource.network.PathwayCommons;
 import org.panda.utility.graph.DirectedGraph;
-import org.panda.utility.graph.Graph;
 import org.panda.utility.graph.GraphList;
-import org.panda.utility.graph.UndirectedGraph;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * Generates triplets (hypotheses) using Pathway Commons SIF graph. Modulator candidates are the neighbors in the
  * in-complex-with and interacts-with graphs, and upstream neighbors in the controls-state-change-of graphs.
  *
+ * The graphs are kept in a read-only snapshot, so one maker can be shared by many datasets and threads.
+ *
  * @author Ozgun Babur
  */
 public class PCTripletMaker
 {
 	/**
-	 * F -> T graph
+	 * F -> T, M - F PPI, and M -> F state-change relations.
 	 */
-	DirectedGraph expGraph;
+	private final PCGraphSnapshot graphs;
 
 	/**
-	 * M - F PPI graph
+	 * Constructor that builds the graphs from Pathway Commons.
 	 */
-	GraphList ppiGraph;
+	public PCTripletMaker()
+	{
+		this(loadFromPC());
+	}
 
 	/**
-	 * M -> F state-change graph
+	 * Constructor with an already loaded snapshot of the graphs.
 	 */
-	DirectedGraph stcGraph;
+	public PCTripletMaker(PCGraphSnapshot graphs)
+	{
+		this.graphs = graphs;
+	}
 
-	public PCTripletMaker()
+	/**
+	 * Creates the maker from the given snapshot file. If the file does not exist, the graphs are built from Pathway
+	 * Commons and their snapshot is written to the file for later use.
+	 */
+	public static PCTripletMaker fromSnapshot(String file) throws IOException
+	{
+		if (Files.exists(Paths.get(file))) return new PCTripletMaker(PCGraphSnapshot.read(file));
+
+		PCGraphSnapshot graphs = loadFromPC();
+		graphs.write(file);
+		return new PCTripletMaker(graphs);
+	}
+
+	private static PCGraphSnapshot loadFromPC()
 	{
 		PathwayCommons pc = new PathwayCommons();
-		expGraph = (DirectedGraph) pc.getGraph(SIFEnum.CONTROLS_EXPRESSION_OF);
-		ppiGraph = (GraphList) pc.getGraph(SIFEnum.IN_COMPLEX_WITH, SIFEnum.INTERACTS_WITH);
-		stcGraph = (DirectedGraph) pc.getGraph(SIFEnum.CONTROLS_STATE_CHANGE_OF);
+		DirectedGraph expGraph = (DirectedGraph) pc.getGraph(SIFEnum.CONTROLS_EXPRESSION_OF);
+		GraphList ppiGraph = (GraphList) pc.getGraph(SIFEnum.IN_COMPLEX_WITH, SIFEnum.INTERACTS_WITH);
+		DirectedGraph stcGraph = (DirectedGraph) pc.getGraph(SIFEnum.CONTROLS_STATE_CHANGE_OF);
+		return PCGraphSnapshot.create(expGraph, ppiGraph, stcGraph);
 	}
 
 	/**
@@ -47,25 +71,25 @@ public class PCTripletMaker
 	 */
 	public List<Triplet> generateForFactor(String factor, GeneProvider loader)
 	{
-		if (loader.get(factor) == null) return Collections.emptyList();
-
-		Set<String> mods = new HashSet<>(ppiGraph.getNeighbors(factor));
-		mods.addAll(stcGraph.getUpstream(factor));
-		Set<String> tars = new HashSet<>(expGraph.getDownstream(factor));
-		if (factor.equals("MYC")) tars.addAll(MYC_TARGETS);
+		return generateTableForFactor(factor, loader).toTriplets();
+	}
 
-		// Don't use the modulators that are also targets
-		mods.removeAll(tars);
-		mods.remove(factor);
-		tars.remove(factor);
+	/**
+	 * Generates triplets from Pathway Commons for the given factor, in a triplet table.
+	 */
+	public TripletTable generateTableForFactor(String factor, GeneProvider loader)
+	{
+		TripletTable table = new TripletTable();
+		if (loader.get(factor) == null) return table;
 
-		List<Triplet> trips = new ArrayList<>();
+		Set<String> tars = getTargetCandidates(factor);
+		Set<String> mods = getModulatorCandidates(factor, tars);
 
 		mods.stream().filter(m -> loader.get(m) != null).forEach(m ->
 			tars.stream().filter(t -> loader.get(t) != null).forEach(t ->
-				trips.add(new Triplet(loader.get(m), loader.get(factor), loader.get(t)))));
+				table.add(loader.get(m), loader.get(factor), loader.get(t))));
 
-		return trips.stream().filter(Triplet::hasAllGenes).collect(Collectors.toList());
+		return table;
 	}
 
 	/**
@@ -73,23 +97,60 @@ public class PCTripletMaker
 	 */
 	public List<Triplet> generateForFactorAndModulator(String factor, String modulator, GeneProvider loader)
 	{
-		if (loader.get(factor) == null) return Collections.emptyList();
+		return generateTableForFactorAndModulator(factor, modulator, loader).toTriplets();
+	}
 
-		Set<String> tars = new HashSet<>(expGraph.getDownstream(factor));
-		if (factor.equals("MYC")) tars.addAll(MYC_TARGETS);
+	/**
+	 * Generates triplets from Pathway Commons for the given factor and modulator, in a triplet table.
+	 */
+	public TripletTable generateTableForFactorAndModulator(String factor, String modulator, GeneProvider loader)
+	{
+		TripletTable table = new TripletTable();
+		if (loader.get(factor) == null) return table;
 
-		// Don't use the modulators that are also targets
+		Set<String> tars = getTargetCandidates(factor);
+
+		tars.stream().filter(t -> loader.get(t) != null).forEach(t ->
+				table.add(loader.get(modulator), loader.get(factor), loader.get(t)));
+
+		return table;
+	}
+
+	/**
+	 * Gets the target candidates of the given factor, excluding the factor itself.
+	 */
+	public Set<String> getTargetCandidates(String factor)
+	{
+		Set<String> tars = graphs.getNeighbors(Relation.EXPRESSION_TARGET, factor);
+		if (factor.equals("MYC")) tars.addAll(MYC_TARGETS);
 		tars.remove(factor);
+		return tars;
+	}
 
-		List<Triplet> trips = new ArrayList<>();
+	/**
+	 * Gets the modulator candidates of the given factor. Modulators that are also in the given target candidates are
+	 * not used.
+	 */
+	public Set<String> getModulatorCandidates(String factor, Set<String> tars)
+	{
+		Set<String> mods = graphs.getNeighbors(Relation.INTERACTOR, factor);
+		mods.addAll(graphs.getNeighbors(Relation.STATE_CHANGE_CONTROLLER, factor));
 
-		tars.stream().filter(t -> loader.get(t) != null).forEach(t ->
-				trips.add(new Triplet(loader.get(modulator), loader.get(factor), loader.get(t))));
+		// Don't use the modulators that are also targets
+		mods.removeAll(tars);
+		mods.remove(factor);
+		return mods;
+	}
 
-		return trips.stream().filter(Triplet::hasAllGenes).collect(Collectors.toList());
+	/**
+	 * Gets the factors that have at least one target in the graph.
+	 */
+	public Set<String> getFactorsWithTargets()
+	{
+		return graphs.getSymbolsWithNeighbors(Relation.EXPRESSION_TARGET);
 	}
 
-	private static Set<String> MYC_TARGETS = new HashSet<>(Arrays.asList((
+	private static final Set<String> MYC_TARGETS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList((
 		"E2F3\n" +
 		"PFKM\n" +
 		"PAPPA-AS1\n" +
@@ -183,5 +244,5 @@ public class PCTripletMaker
 		"PDCD10\n" +
 		"CREBBP\n" +
 		"BIRC5\n" +
-		"ARTN").split("\n")));
+		"ARTN").split("\n"))));
 }
@@ -1,16 +1,27 @@
 package org.panda.gem.resource;
 
+import org.panda.gem.GemFlightRecorder;
 import org.panda.gem.Gene;
+import org.panda.gem.PipelineMetrics;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
  * This class is for loading a simple expression file, where the first row is header, first column is the gene symbol,
  * and other cells contain the expression values.
  *
+ * By default all rows are read and discretized when the loader is created. In the lazy mode, only the byte offset of
+ * each row is recorded at creation, and a row is read and discretized when its gene is requested for the first time.
+ *
  * @author Ozgun Babur
  */
 public class SimpleFileExpressionLoader implements GeneProvider
@@ -21,42 +32,251 @@ public class SimpleFileExpressionLoader implements GeneProvider
 	String filename;
 
 	/**
-	 * Cache for not creating redundant genes.
+	 * Genes of the eager mode. Filled at creation, and only read afterwards.
+	 */
+	private Map<String, Gene> genes;
+
+	/**
+	 * Cache for not creating redundant genes. Used only in the lazy mode.
+	 */
+	private GeneCache cache;
+
+	/**
+	 * Map from a gene symbol to its row index in the offsets and lengths arrays. Used only in the lazy mode.
+	 */
+	private Map<String, Integer> rowIndex;
+
+	/**
+	 * Byte offsets of the rows in the file. Used only in the lazy mode.
 	 */
-	private Map<String, Gene> cache;
+	private long[] offsets;
+
+	/**
+	 * Byte lengths of the rows in the file, excluding the line terminators. Used only in the lazy mode.
+	 */
+	private int[] lengths;
 
 	/**
 	 * Constructor with the filename.
 	 */
 	public SimpleFileExpressionLoader(String filename) throws IOException
+	{
+		this(filename, false);
+	}
+
+	/**
+	 * Constructor with the filename and the loading mode.
+	 * @param filename the expression file
+	 * @param lazy if true, only the locations of rows are recorded, and rows are read when requested
+	 */
+	public SimpleFileExpressionLoader(String filename, boolean lazy) throws IOException
+	{
+		this(filename, lazy, null);
+	}
+
+	/**
+	 * Constructor with the filename, the loading mode and the metrics to record the discretization in.
+	 * @param filename the expression file
+	 * @param lazy if true, only the locations of rows are recorded, and rows are read when requested
+	 * @param metrics metrics to record the discretization of the eager mode as a "discretize" stage, or null
+	 */
+	public SimpleFileExpressionLoader(String filename, boolean lazy, PipelineMetrics metrics) throws IOException
 	{
 		this.filename = filename;
-		cache = new HashMap<>();
-		readFile();
+		if (lazy)
+		{
+			cache = new GeneCache();
+			GemFlightRecorder.register(cache, filename);
+			indexFile();
+		}
+		else
+		{
+			genes = new HashMap<>();
+			readFile(metrics);
+		}
+	}
+
+	/**
+	 * Reads the values file and load genes in a cache. Rows are parsed in parallel, then all genes are discretized
+	 * together.
+	 */
+	private void readFile(PipelineMetrics metrics) throws IOException
+	{
+		TsvReader reader = new TsvReader(filename);
+		reader.setSkipPrefixes("!", "#");
+		reader.readHeader();
+
+		for (Gene gene : reader.map(row -> parseRow(row, false)))
+		{
+			genes.put(gene.symbol, gene);
+		}
+
+		try (PipelineMetrics.Stage stage = PipelineMetrics.start(metrics, "discretize"))
+		{
+			Gene.discretizeAll(genes.values());
+			stage.setItemsIn(genes.size());
+		}
+	}
+
+	/**
+	 * Records the location of each row, without parsing the values. Lines are skipped in the same way with the eager
+	 * mode.
+	 */
+	private void indexFile() throws IOException
+	{
+		rowIndex = new HashMap<>();
+		offsets = new long[1024];
+		lengths = new int[1024];
+
+		try (InputStream in = Files.newInputStream(Paths.get(filename)))
+		{
+			byte[] block = new byte[1 << 16];
+			byte[] symbol = new byte[256];
+			boolean headerPassed = false;
+
+			// state of the current line
+			long start = 0;
+			long pos = 0;
+			int symLength = 0;
+			boolean inSymbol = true;
+			int first = -1;
+			int last = -1;
+
+			int read;
+			do
+			{
+				read = in.read(block);
+
+				// the end of the file is handled as one more line terminator
+				int n = read < 0 ? 1 : read;
+
+				for (int i = 0; i < n; i++)
+				{
+					if (read >= 0 && block[i] != '\n')
+					{
+						byte b = block[i];
+						if (first < 0) first = b;
+						last = b;
+						pos++;
+
+						if (inSymbol)
+						{
+							if (b == '\t') inSymbol = false;
+							else
+							{
+								if (symLength == symbol.length) symbol = Arrays.copyOf(symbol, symLength * 2);
+								symbol[symLength++] = b;
+							}
+						}
+						continue;
+					}
+
+					// exclude the carriage return of a CRLF line terminator
+					long end = pos;
+					if (last == '\r')
+					{
+						end--;
+						if (inSymbol) symLength--;
+					}
+
+					if (end > start && first != '!' && first != '#')
+					{
+						if (headerPassed)
+						{
+							String sym = getSymbol(new String(symbol, 0, symLength, StandardCharsets.UTF_8));
+							addRow(sym, start, (int) (end - start));
+						}
+						else headerPassed = true;
+					}
+
+					if (read < 0) break;
+
+					pos++;
+					start = pos;
+					symLength = 0;
+					inSymbol = true;
+					first = -1;
+					last = -1;
+				}
+			}
+			while (read >= 0);
+		}
+	}
+
+	private void addRow(String symbol, long offset, int length)
+	{
+		int index = rowIndex.size();
+		if (rowIndex.containsKey(symbol)) index = rowIndex.get(symbol);
+		else if (index == offsets.length)
+		{
+			offsets = Arrays.copyOf(offsets, index * 2);
+			lengths = Arrays.copyOf(lengths, index * 2);
+		}
+
+		rowIndex.put(symbol, index);
+		offsets[index] = offset;
+		lengths[index] = length;
 	}
 
 	/**
-	 * Reads the values file and load genes in a cache.
+	 * Reads and parses the row of the given symbol.
 	 */
-	private void readFile() throws IOException
+	private Gene readRow(String symbol)
 	{
-		Files.lines(Paths.get(filename)).filter(l -> !l.startsWith("!")).filter(l -> !l.isEmpty())
-			.filter(l -> !l.startsWith("#")).skip(1).map(l -> l.split("\t")).forEach(t ->
+		int index = rowIndex.get(symbol);
+		ByteBuffer buf = ByteBuffer.allocate(lengths[index]);
+
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ))
 		{
-			double[] v = new double[t.length - 1];
-			String symbol = t[0].replaceAll("\"", "");
-			if (symbol.contains("|")) symbol = symbol.substring(0, symbol.indexOf("|"));
-			for (int i = 1; i < t.length; i++)
+			long pos = offsets[index];
+			while (buf.hasRemaining())
 			{
-				v[i - 1] = Double.valueOf(t[i]);
+				if (channel.read(buf, pos + buf.position()) < 0) break;
 			}
-			cache.put(symbol, new Gene(symbol, v));
-		});
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+
+		return parseRow(new TsvReader.Row(buf.array(), 0, buf.position()), true);
+	}
+
+	/**
+	 * Creates the gene of a row.
+	 * @param discretize whether to discretize the gene now, or leave it to {@link Gene#discretizeAll}
+	 */
+	private Gene parseRow(TsvReader.Row row, boolean discretize)
+	{
+		return new Gene(getSymbol(row.getUnquoted(0)), row.getDoubles(1), discretize);
+	}
+
+	/**
+	 * Cleans the symbol in the first column.
+	 */
+	private static String getSymbol(String s)
+	{
+		String symbol = s.replaceAll("\"", "");
+		if (symbol.contains("|")) symbol = symbol.substring(0, symbol.indexOf("|"));
+		return symbol;
 	}
 
 	@Override
 	public Gene get(String symbol)
 	{
-		return cache.get(symbol);
+		if (cache == null) return genes.get(symbol);
+		return cache.get(symbol, sym -> rowIndex.containsKey(sym) ? readRow(sym) : null);
+	}
+
+	/**
+	 * Limits the memory used by the genes of the lazy mode. Genes that were not used recently are evicted when the
+	 * estimated size of the cached genes exceeds the budget, and their rows are read again if requested later. See
+	 * {@link GeneCache} for the effects of eviction. The eager mode keeps all genes, so there it does nothing.
+	 * @param maxBytes maximum total estimated size of the cached genes in bytes
+	 */
+	@Override
+	public void setMemoryBudget(long maxBytes)
+	{
+		if (cache != null) cache.setMemoryBudget(maxBytes);
 	}
 }
@@ -1,5 +1,6 @@
 package org.panda.gem.resource;
 
+import org.panda.gem.GemFlightRecorder;
 import org.panda.gem.Gene;
 import org.panda.resource.tcga.ExpressionReader;
 import org.panda.utility.statistics.Histogram;
@@ -9,7 +10,6 @@ import org.panda.utility.statistics.UniquePrinter;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -22,7 +22,7 @@ public class TCGAExpressionLoader implements GeneProvider
 	/**
 	 * Cache for not creating redundant genes.
 	 */
-	private Map<String, Gene> cache;
+	private final GeneCache cache;
 
 	/**
 	 * TCGA expression reader.
@@ -34,45 +34,63 @@ public class TCGAExpressionLoader implements GeneProvider
 	 */
 	private String[] samples;
 
+	/**
+	 * Directory of the TCGA dataset.
+	 */
+	private String directory;
+
 	private double stdevThr;
 
 	private UniquePrinter up = new UniquePrinter();
 
 	public TCGAExpressionLoader(String dirForExpressions, Set<String> sampleSubset) throws FileNotFoundException
 	{
+		directory = dirForExpressions;
 		expR = new ExpressionReader(dirForExpressions + "/expression.txt", null, 15);
 		samples = sampleSubset == null ? expR.getSamples().stream().sorted().toArray(String[]::new) :
 			expR.getSamples().stream().filter(sampleSubset::contains).sorted().toArray(String[]::new);
-		cache = new HashMap<>();
+		cache = new GeneCache();
+		GemFlightRecorder.register(cache, directory);
 		stdevThr = 0;
 	}
 
 	@Override
 	public Gene get(String symbol)
 	{
-		if (!cache.containsKey(symbol))
+		return cache.get(symbol, this::load);
+	}
+
+	/**
+	 * Reads and discretizes the gene. The expression reader and the printer are not thread-safe, hence they are used
+	 * one thread at a time, while the discretization of different genes can run in parallel.
+	 */
+	private Gene load(String symbol)
+	{
+		double[] vals;
+		synchronized (expR)
 		{
-			double[] vals = expR.getGeneAlterationArray(symbol, samples);
-			if (vals != null)
-			{
-				if (Summary.stdev(vals) >= stdevThr)
-				{
-					Gene g = new Gene(symbol, vals);
-					cache.put(symbol, g);
-				}
-				else
-				{
-					cache.put(symbol, null);
-					up.print("Gene does not pass stdev threshold = ", symbol);
-				}
-			}
-			else
-			{
-				cache.put(symbol, null);
-				up.print("Gene is not found = ", symbol);
-			}
+			vals = expR.getGeneAlterationArray(symbol, samples);
+		}
+
+		if (vals == null)
+		{
+			print("Gene is not found = ", symbol);
+			return null;
+		}
+		if (Summary.stdev(vals) < stdevThr)
+		{
+			print("Gene does not pass stdev threshold = ", symbol);
+			return null;
+		}
+		return new Gene(symbol, vals);
+	}
+
+	private void print(String message, String symbol)
+	{
+		synchronized (up)
+		{
+			up.print(message, symbol);
 		}
-		return cache.get(symbol);
 	}
 
 	public void setStdevThr(double stdevThr)
@@ -80,22 +98,39 @@ public class TCGAExpressionLoader implements GeneProvider
 		this.stdevThr = stdevThr;
 	}
 
+	/**
+	 * Limits the memory used by the cached genes. Genes that were not used recently are evicted when the estimated size
+	 * of the cached genes exceeds the budget, and they are loaded again if requested later. This can be called while
+	 * genes are being requested. See {@link GeneCache} for the effects of eviction.
+	 * @param maxBytes maximum total estimated size of the cached genes in bytes
+	 */
+	@Override
+	public void setMemoryBudget(long maxBytes)
+	{
+		cache.setMemoryBudget(maxBytes);
+	}
+
+	/**
+	 * Gets the cache, for its statistics.
+	 */
+	public GeneCache getCache()
+	{
+		return cache;
+	}
+
 	public void writeExpressionHistograms()
 	{
 		try
 		{
 			OutputStream os = new FileOutputStream("/home/babur/Documents/GEM/TCGAPC/temp.txt");
 
-			for (String gene : cache.keySet())
+			Map<String, Gene> loaded = cache.getLoaded();
+			for (String gene : loaded.keySet())
 			{
 				Histogram h = new Histogram(1, gene);
 				h.setBorderAtZero(true);
-				Gene g = cache.get(gene);
-				if (g != null)
-				{
-					h.countAll(g.vals);
-					h.write(os);
-				}
+				h.countAll(loaded.get(gene).vals);
+				h.write(os);
 			}
 			os.close();
 
@@ -0,0 +1,581 @@
+package org.panda.gem.resource;
+
+import org.panda.gem.PipelineMetrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Reader for large tab-delimited files. The file is divided into chunks that end at line boundaries, and chunks are
+ * parsed in parallel. Cells are located on the bytes of the chunk, and numbers are parsed directly from the bytes,
+ * without creating intermediate strings.
+ *
+ * Lines are separated by LF or CRLF. Empty lines and lines starting with one of the skip prefixes are ignored. As in
+ * String.split, trailing empty cells of a line are ignored.
+ *
+ * @author Ozgun Babur
+ */
+public class TsvReader
+{
+	/**
+	 * Default size of a chunk in bytes. A chunk can be longer, so that it ends at a line boundary.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 23;
+
+	/**
+	 * Powers of ten that are exactly representable as doubles.
+	 */
+	private static final double[] POW10 = new double[23];
+
+	static
+	{
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++)
+		{
+			POW10[i] = POW10[i - 1] * 10;
+		}
+	}
+
+	/**
+	 * The largest mantissa that is exactly representable as a double.
+	 */
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	/**
+	 * Name of the file.
+	 */
+	private String filename;
+
+	/**
+	 * Lines starting with these prefixes are ignored.
+	 */
+	private byte[][] skipPrefixes;
+
+	/**
+	 * Byte offset where the remaining lines start. This moves forward when the header is read.
+	 */
+	private long start;
+
+	private int threads;
+
+	private int chunkSize;
+
+	public TsvReader(String filename)
+	{
+		this.filename = filename;
+		this.skipPrefixes = new byte[0][];
+		this.threads = Runtime.getRuntime().availableProcessors();
+		this.chunkSize = DEFAULT_CHUNK_SIZE;
+	}
+
+	/**
+	 * Sets the line prefixes that mark lines to ignore, such as comments.
+	 */
+	public void setSkipPrefixes(String... prefixes)
+	{
+		skipPrefixes = new byte[prefixes.length][];
+		for (int i = 0; i < prefixes.length; i++)
+		{
+			skipPrefixes[i] = prefixes[i].getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	public void setThreads(int threads)
+	{
+		if (threads < 1) throw new IllegalArgumentException("Number of threads has to be positive: " + threads);
+		this.threads = threads;
+	}
+
+	public void setChunkSize(int chunkSize)
+	{
+		if (chunkSize < 1) throw new IllegalArgumentException("Chunk size has to be positive: " + chunkSize);
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Reads the first line that is not ignored, and excludes it from the later reads.
+	 * @return cells of the header, or null if there are no lines
+	 */
+	public String[] readHeader() throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			Row row = new Row();
+
+			while (start < size)
+			{
+				long end = findLineEnd(channel, start, size);
+				byte[] line = read(channel, start, end);
+				start = end;
+
+				int e = line.length > 0 && line[line.length - 1] == '\n' ? line.length - 1 : line.length;
+				int length = lineLength(line, 0, e);
+				if (skip(line, 0, length)) continue;
+
+				row.set(line, 0, length);
+				String[] header = new String[row.size()];
+				for (int i = 0; i < header.length; i++)
+				{
+					header[i] = row.getString(i);
+				}
+				return header;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Maps each line that is not ignored using the given function. The function is called from multiple threads, and
+	 * the given row object is valid only during the call.
+	 * @param mapper function to apply on rows, returns null for the rows that should be left out
+	 * @return results of the lines, in the order of the file
+	 */
+	public <T> List<T> map(Function<Row, T> mapper) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ))
+		{
+			long[] bounds = chunkBounds(channel);
+			int chunks = bounds.length - 1;
+
+			if (chunks == 1 || threads == 1)
+			{
+				List<T> results = new ArrayList<>();
+				for (int i = 0; i < chunks; i++)
+				{
+					results.addAll(mapChunk(channel, bounds[i], bounds[i + 1], mapper));
+				}
+				return results;
+			}
+
+			// The reading threads end with the reading, so they leave the stage after each chunk
+			PipelineMetrics.Stage stage = PipelineMetrics.current();
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, chunks));
+			List<Future<List<T>>> futures = new ArrayList<>();
+			for (int i = 0; i < chunks; i++)
+			{
+				long s = bounds[i];
+				long e = bounds[i + 1];
+				futures.add(executor.submit(() ->
+				{
+					stage.addThread();
+					try
+					{
+						return mapChunk(channel, s, e, mapper);
+					}
+					finally
+					{
+						stage.removeThread();
+					}
+				}));
+			}
+			executor.shutdown();
+
+			List<T> results = new ArrayList<>();
+			try
+			{
+				for (Future<List<T>> future : futures)
+				{
+					results.addAll(future.get());
+				}
+			}
+			catch (InterruptedException e)
+			{
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			catch (ExecutionException e)
+			{
+				executor.shutdownNow();
+				Throwable cause = e.getCause();
+				if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+				if (cause instanceof IOException) throw (IOException) cause;
+				if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				throw new RuntimeException(cause);
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * Passes each line that is not ignored to the given consumer, in the order of the file and in the calling thread.
+	 * Only one chunk is in memory at a time, so this does not keep the whole file. The given row object is valid only
+	 * during the call.
+	 */
+	public void forEach(Consumer<Row> consumer) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ))
+		{
+			long[] bounds = chunkBounds(channel);
+			Row row = new Row();
+			for (int i = 0; i < bounds.length - 1; i++)
+			{
+				forEachLine(read(channel, bounds[i], bounds[i + 1]), row, consumer);
+			}
+		}
+	}
+
+	/**
+	 * Divides the remaining part of the file into chunks that end at line boundaries.
+	 * @return start of each chunk, followed by the end of the last chunk
+	 */
+	private long[] chunkBounds(FileChannel channel) throws IOException
+	{
+		long size = channel.size();
+		List<Long> bounds = new ArrayList<>();
+		bounds.add(start);
+
+		long pos = start;
+		while (pos < size)
+		{
+			pos = pos + chunkSize >= size ? size : findLineEnd(channel, pos + chunkSize, size);
+			bounds.add(pos);
+		}
+		if (bounds.size() == 1) bounds.add(start);
+
+		return bounds.stream().mapToLong(Long::longValue).toArray();
+	}
+
+	/**
+	 * Finds the position after the next line feed, starting from the given position.
+	 */
+	private static long findLineEnd(FileChannel channel, long pos, long size) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(1 << 13);
+
+		while (pos < size)
+		{
+			buf.clear();
+			int n = channel.read(buf, pos);
+			if (n < 0) break;
+
+			byte[] b = buf.array();
+			for (int i = 0; i < n; i++)
+			{
+				if (b[i] == '\n') return pos + i + 1;
+			}
+			pos += n;
+		}
+		return size;
+	}
+
+	/**
+	 * Reads the bytes between the given positions.
+	 */
+	private static byte[] read(FileChannel channel, long s, long e) throws IOException
+	{
+		if (e - s > Integer.MAX_VALUE) throw new IOException("Chunk is too long at byte " + s);
+
+		ByteBuffer buf = ByteBuffer.allocate((int) (e - s));
+		while (buf.hasRemaining())
+		{
+			if (channel.read(buf, s + buf.position()) < 0) break;
+		}
+		return buf.array();
+	}
+
+	private <T> List<T> mapChunk(FileChannel channel, long s, long e, Function<Row, T> mapper)
+	{
+		byte[] data;
+		try
+		{
+			data = read(channel, s, e);
+		}
+		catch (IOException ex)
+		{
+			throw new UncheckedIOException(ex);
+		}
+
+		List<T> results = new ArrayList<>();
+		forEachLine(data, new Row(), row ->
+		{
+			T result = mapper.apply(row);
+			if (result != null) results.add(result);
+		});
+		return results;
+	}
+
+	/**
+	 * Sets the given row to each line of the chunk that is not ignored, and passes it to the consumer.
+	 */
+	private void forEachLine(byte[] data, Row row, Consumer<Row> consumer)
+	{
+		int lineStart = 0;
+		while (lineStart < data.length)
+		{
+			int lineEnd = lineStart;
+			while (lineEnd < data.length && data[lineEnd] != '\n') lineEnd++;
+
+			int length = lineLength(data, lineStart, lineEnd);
+			if (!skip(data, lineStart, length))
+			{
+				row.set(data, lineStart, lineStart + length);
+				consumer.accept(row);
+			}
+			lineStart = lineEnd + 1;
+		}
+	}
+
+	/**
+	 * Length of the line, excluding the carriage return of a CRLF terminator.
+	 */
+	private static int lineLength(byte[] b, int s, int e)
+	{
+		return e > s && b[e - 1] == '\r' ? e - s - 1 : e - s;
+	}
+
+	private boolean skip(byte[] b, int s, int length)
+	{
+		if (length == 0) return true;
+
+		for (byte[] prefix : skipPrefixes)
+		{
+			if (startsWith(b, s, length, prefix)) return true;
+		}
+		return false;
+	}
+
+	private static boolean startsWith(byte[] b, int s, int length, byte[] prefix)
+	{
+		if (prefix.length > length) return false;
+
+		for (int i = 0; i < prefix.length; i++)
+		{
+			if (b[s + i] != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	// Section: Number parsing
+
+	/**
+	 * Parses a decimal number from the bytes. Numbers with at most 18 significant digits, whose mantissa and power of
+	 * ten are exactly representable as doubles, are calculated with a single multiplication or division, which is
+	 * correctly rounded. All other numbers are parsed by Double.parseDouble, so the result is always the same with it.
+	 */
+	static double parseDouble(byte[] b, int s, int e)
+	{
+		int i = s;
+		boolean negative = false;
+		if (i < e && (b[i] == '-' || b[i] == '+'))
+		{
+			negative = b[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean anyDigit = false;
+
+		for (; i < e && isDigit(b[i]); i++)
+		{
+			mantissa = mantissa * 10 + (b[i] - '0');
+			if (mantissa != 0) digits++;
+			anyDigit = true;
+		}
+
+		if (i < e && b[i] == '.')
+		{
+			for (i++; i < e && isDigit(b[i]); i++)
+			{
+				mantissa = mantissa * 10 + (b[i] - '0');
+				if (mantissa != 0) digits++;
+				exponent--;
+				anyDigit = true;
+			}
+		}
+
+		if (anyDigit && digits <= 18 && i < e && (b[i] == 'e' || b[i] == 'E'))
+		{
+			i++;
+			boolean negExp = false;
+			if (i < e && (b[i] == '-' || b[i] == '+'))
+			{
+				negExp = b[i] == '-';
+				i++;
+			}
+
+			int exp = 0;
+			boolean anyExpDigit = false;
+			for (; i < e && isDigit(b[i]) && exp < 10000; i++)
+			{
+				exp = exp * 10 + (b[i] - '0');
+				anyExpDigit = true;
+			}
+			if (!anyExpDigit) anyDigit = false;
+			exponent += negExp ? -exp : exp;
+		}
+
+		if (anyDigit && digits <= 18 && i == e && mantissa <= MAX_EXACT_MANTISSA)
+		{
+			if (mantissa == 0) return negative ? -0D : 0D;
+
+			double v = Double.NaN;
+			if (exponent >= 0 && exponent < POW10.length) v = mantissa * POW10[exponent];
+			else if (exponent < 0 && -exponent < POW10.length) v = mantissa / POW10[-exponent];
+
+			if (!Double.isNaN(v)) return negative ? -v : v;
+		}
+
+		return Double.parseDouble(new String(b, s, e - s, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Parses an integer from the bytes. Numbers with more than 9 digits, or with invalid characters, are parsed by
+	 * Integer.parseInt.
+	 */
+	static int parseInt(byte[] b, int s, int e)
+	{
+		int i = s;
+		boolean negative = i < e && b[i] == '-';
+		if (i < e && (b[i] == '-' || b[i] == '+')) i++;
+
+		if (i < e && e - i <= 9)
+		{
+			int v = 0;
+			for (; i < e && isDigit(b[i]); i++)
+			{
+				v = v * 10 + (b[i] - '0');
+			}
+			if (i == e) return negative ? -v : v;
+		}
+
+		return Integer.parseInt(new String(b, s, e - s, StandardCharsets.UTF_8));
+	}
+
+	private static boolean isDigit(byte c)
+	{
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * A line of the file, with the locations of its cells.
+	 */
+	public static class Row
+	{
+		private byte[] data;
+		private int[] cellStart = new int[16];
+		private int[] cellEnd = new int[16];
+		private int size;
+
+		Row()
+		{
+		}
+
+		/**
+		 * Creates a row on the given bytes of a single line.
+		 */
+		Row(byte[] data, int s, int e)
+		{
+			set(data, s, e);
+		}
+
+		/**
+		 * Locates the cells of the line between the given positions.
+		 */
+		void set(byte[] data, int s, int e)
+		{
+			this.data = data;
+			size = 0;
+
+			int cs = s;
+			for (int i = s; i <= e; i++)
+			{
+				if (i == e || data[i] == '\t')
+				{
+					if (size == cellStart.length)
+					{
+						cellStart = Arrays.copyOf(cellStart, size * 2);
+						cellEnd = Arrays.copyOf(cellEnd, size * 2);
+					}
+					cellStart[size] = cs;
+					cellEnd[size] = i;
+					size++;
+					cs = i + 1;
+				}
+			}
+
+			while (size > 0 && cellStart[size - 1] == cellEnd[size - 1]) size--;
+		}
+
+		/**
+		 * Number of cells in the row.
+		 */
+		public int size()
+		{
+			return size;
+		}
+
+		public String getString(int i)
+		{
+			check(i);
+			return new String(data, cellStart[i], cellEnd[i] - cellStart[i], StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Gets the cell after removing all double quotes in it.
+		 */
+		public String getUnquoted(int i)
+		{
+			check(i);
+			byte[] b = new byte[cellEnd[i] - cellStart[i]];
+			int n = 0;
+			for (int j = cellStart[i]; j < cellEnd[i]; j++)
+			{
+				if (data[j] != '"') b[n++] = data[j];
+			}
+			return new String(b, 0, n, StandardCharsets.UTF_8);
+		}
+
+		public double getDouble(int i)
+		{
+			check(i);
+			return parseDouble(data, cellStart[i], cellEnd[i]);
+		}
+
+		public int getInt(int i)
+		{
+			check(i);
+			return parseInt(data, cellStart[i], cellEnd[i]);
+		}
+
+		/**
+		 * Parses the cells starting from the given index as doubles.
+		 */
+		public double[] getDoubles(int from)
+		{
+			double[] v = new double[Math.max(size - from, 0)];
+			for (int i = 0; i < v.length; i++)
+			{
+				v[i] = parseDouble(data, cellStart[from + i], cellEnd[from + i]);
+			}
+			return v;
+		}
+
+		private void check(int i)
+		{
+			if (i < 0 || i >= size) throw new ArrayIndexOutOfBoundsException(i);
+		}
+
+		@Override
+		public String toString()
+		{
+			return size == 0 ? "" :
+				new String(data, cellStart[0], cellEnd[size - 1] - cellStart[0], StandardCharsets.UTF_8);
+		}
+	}
+}
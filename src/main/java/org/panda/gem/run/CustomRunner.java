@@ -1,19 +1,30 @@
 package org.panda.gem.run;
 
+import org.panda.gem.CoefficientCache;
+import org.panda.gem.GemFlightRecorder;
 import org.panda.gem.ModPrint;
+import org.panda.gem.PermutationTest;
+import org.panda.gem.PipelineMetrics;
 import org.panda.gem.Selector;
+import org.panda.gem.StabilitySelection;
 import org.panda.gem.Triplet;
+import org.panda.gem.TripletFile;
+import org.panda.gem.TripletTable;
 import org.panda.gem.resource.CustomTripletMaker;
+import org.panda.gem.resource.DatasetRegistry;
 import org.panda.gem.resource.GeneProvider;
-import org.panda.gem.resource.SimpleFileExpressionLoader;
-import org.panda.gem.resource.TCGAExpressionLoader;
 import org.panda.utility.FileUtil;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static org.panda.gem.run.SimpleRunner.TARGETS_FILE;
@@ -27,6 +38,9 @@ import static org.panda.gem.run.SimpleRunner.TARGETS_FILE;
  *
  * Format of modulator and target candidate files: Gene symbols, one per line, no header.
  *
+ * Multiple directories can be analyzed in one batch, concurrently. The analyses of a batch share the loaded
+ * datasets, hence each expression file or TCGA study with a sample subset is loaded only once.
+ *
  * @author Ozgun Babur
  */
 public class CustomRunner
@@ -46,6 +60,16 @@ public class CustomRunner
 	 */
 	private String customExpressionFile;
 
+	/**
+	 * Whether to read the rows of a text custom expression file only when their genes are used.
+	 */
+	private boolean lazyExpressionLoading = false;
+
+	/**
+	 * Memory budget of the cached genes of the dataset in bytes, or Long.MAX_VALUE for no budget.
+	 */
+	private long geneCacheMemoryBudget = Long.MAX_VALUE;
+
 	/**
 	 * The directory that contains TCGA datasets that are downloaded from Broad Firehose using the BroadDownloader in
 	 * the "resource" project.
@@ -88,26 +112,102 @@ public class CustomRunner
 	private double categoryPvalThr = 0.05;
 
 	/**
-	 * Name of the result triplet text file.
+	 * Number of threads to use while selecting significant triplets.
 	 */
-	private String tripletFilename = "results.txt";
+	private int threads;
+
+	/**
+	 * Maximum number of coefficients to cache, each for a triplet count signature. Zero disables the cache.
+	 */
+	private int coefficientCacheSize = 100000;
+
+	/**
+	 * Maximum number of target permutations for the empirical p-values of gamma and betaM. Zero uses the normal
+	 * approximation.
+	 */
+	private int permutations = 0;
+
+	/**
+	 * Seed of the target permutations and the bootstrap resamples.
+	 */
+	private long randomSeed = 0;
+
+	/**
+	 * Number of bootstrap replicates for measuring the stability of the selection. Zero skips the stability analysis.
+	 */
+	private int bootstrapReplicates = 0;
+
+	/**
+	 * Whether to write the result triplets in the binary format instead of the tab-delimited text.
+	 */
+	private boolean binaryResults = false;
+
+	/**
+	 * Name of the result triplet file. When not given, it is results.txt, or results.gemt with the binary format.
+	 */
+	private String tripletFilename;
 
 	/**
 	 * Name of the result SVG file that shows distribution of triplet categories for each modulator separately.
 	 */
 	private String svgFilename = "results.svg";
 
+	/**
+	 * Name of the file that shows selection frequencies of triplets in bootstrap replicates.
+	 */
+	private String stabilityFilename = "stability.txt";
+
+	/**
+	 * Name of the JSON file that has the time, allocation and item counts of each stage of the run.
+	 */
+	private String metricsFilename = "metrics.json";
+
+	/**
+	 * Name of the Java Flight Recorder file to record the run into. Null disables recording.
+	 */
+	private String flightRecordingFilename;
+
+	/**
+	 * Registry to get the expression datasets from.
+	 */
+	private DatasetRegistry datasets;
+
+	/**
+	 * Prefix of the printed lines, to tell the analyses of a concurrent batch apart.
+	 */
+	private String logPrefix = "";
+
 
 	public CustomRunner(String inputDirectory) throws IOException
+	{
+		this(inputDirectory, new DatasetRegistry(), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor for an analysis that shares its datasets with other analyses.
+	 * @param inputDirectory the directory that has the parameters file
+	 * @param datasets registry to get the expression datasets from
+	 * @param threads default number of threads, which the parameters file can override
+	 */
+	public CustomRunner(String inputDirectory, DatasetRegistry datasets, int threads) throws IOException
 	{
 		this.inputDirectory = inputDirectory;
+		this.datasets = datasets;
+		this.threads = threads;
 		this.modulators = new HashSet<>();
 		this.targets = new HashSet<>();
 		this.tcgaSubtypes = new HashSet<>();
-		this.tripletFilename = inputDirectory + File.separator + this.tripletFilename;
 		this.svgFilename = inputDirectory + File.separator + this.svgFilename;
+		this.stabilityFilename = inputDirectory + File.separator + this.stabilityFilename;
+		this.metricsFilename = inputDirectory + File.separator + this.metricsFilename;
 
 		readParameters();
+
+		if (tripletFilename == null)
+		{
+			tripletFilename = inputDirectory + File.separator + "results" +
+				(binaryResults ? TripletFile.EXTENSION : ".txt");
+		}
 	}
 
 	private void readParameters() throws IOException
@@ -161,7 +261,19 @@ public class CustomRunner
 			"Targets filename", "The file has to contain a gene symbol per line."),
 		CUSTOM_EXPRESSION_FILE((value, cr) -> cr.customExpressionFile = cr.getFilename(value),
 			"Name of the custom expression file",
-			"First column has gene symbols, first row has sample names, values are in columns."),
+			"First column has gene symbols, first row has sample names, values are in columns. This can also be a " +
+				"binary expression file generated by the MappedExpressionLoader class."),
+		LAZY_EXPRESSION_LOADING((value, cr) -> cr.lazyExpressionLoading = Boolean.valueOf(value),
+			"Lazy expression loading", "If true, a row of a text custom expression file is read and discretized only " +
+			"when its gene is used, instead of reading all rows at loading. This saves time and memory when the " +
+			"modulators and targets are a small part of the file. Default is false."),
+		GENE_CACHE_MEMORY_BUDGET((value, cr) -> cr.geneCacheMemoryBudget = Long.valueOf(value) << 20,
+			"Gene cache memory budget", "Maximum memory in megabytes for the cached genes of a TCGA study, a binary " +
+			"expression file, or a lazily loaded expression file. Genes that were not used recently are evicted " +
+			"beyond it, and loaded again when needed. Genes that are still used by the analysis are not freed, and " +
+			"a gene that is loaded again is a new object, so the budget should hold the genes of the tested " +
+			"triplets. Datasets shared in a batch use the budget of the last analysis that sets it. No limit by " +
+			"default."),
 		TCGA_DIRECTORY((value, cr) -> cr.tcgaDirectory = cr.getFilename(value), "TCGA data directory",
 			"The directory where TCGA data is downloaded using the BroadDownloader class in the \"resource\" project."),
 		TCGA_STUDY((value, cr) -> cr.tcgaStudy = value, "TCGA study code", "The disease code toget expression from."),
@@ -172,10 +284,42 @@ public class CustomRunner
 		CATEGORY_PVAL_THR((value, cr) -> cr.categoryPvalThr = Double.valueOf(value), "Category p-value threhsold",
 			"For using while determining category of a significant triplet. Note that some significant triplets may " +
 				"fail to get a category. In that case they are excluded from results."),
+		THREADS((value, cr) -> cr.threads = Integer.valueOf(value), "Number of threads",
+			"Number of threads to use while selecting significant triplets. Results do not depend on this number. " +
+				"Default is the number of available processors."),
+		COEFFICIENT_CACHE_SIZE((value, cr) -> cr.coefficientCacheSize = Integer.valueOf(value),
+			"Coefficient cache size", "Maximum number of coefficients to remember for distinct triplet counts. " +
+			"Triplets with the same counts have the same coefficients. Zero disables the cache. Default is 100000."),
+		PERMUTATIONS((value, cr) -> cr.permutations = Integer.valueOf(value), "Number of permutations",
+			"Maximum number of target label permutations for calculating empirical p-values of gamma and betaM. " +
+			"Permutations of a triplet stop early when it is clearly not significant. The smallest possible p-value " +
+			"is 1 / (permutations + 1), so this should be large compared to the number of tested triplets divided by " +
+			"the FDR threshold. Zero uses the normal approximation instead. Default is 0."),
+		RANDOM_SEED((value, cr) -> cr.randomSeed = Long.valueOf(value), "Random seed",
+			"Seed of the random permutations and bootstrap resamples, for reproducible results. Default is 0."),
+		PERMUTATION_SEED((value, cr) -> cr.randomSeed = Long.valueOf(value), "Permutation seed",
+			"Same as random-seed. Kept for the parameter files that use the older name."),
+		BOOTSTRAP_REPLICATES((value, cr) -> cr.bootstrapReplicates = Integer.valueOf(value), "Bootstrap replicates",
+			"Number of bootstrap resamples of the samples to repeat the selection on. When positive, the selection " +
+			"frequency and category agreement of each triplet are written to the stability file. Default is 0."),
+		BINARY_RESULTS((value, cr) -> cr.binaryResults = Boolean.valueOf(value), "Binary results",
+			"If true, result triplets are written in the compact binary format of the TripletFile class instead of " +
+			"tab-delimited text, and the default name of the result triplet file ends with " + TripletFile.EXTENSION +
+			" instead of .txt. Default is false."),
 		RESULT_TRIPLET_FILENAME((value, cr) -> cr.tripletFilename = cr.getFilename(value), "Result triplet filename",
 			"Overrides the default name"),
 		RESULT_SVG_FILENAME((value, cr) -> cr.svgFilename= cr.getFilename(value), "Result SVG filename",
 			"Overrides the default name"),
+		RESULT_STABILITY_FILENAME((value, cr) -> cr.stabilityFilename = cr.getFilename(value),
+			"Result stability filename", "Overrides the default name"),
+		RESULT_METRICS_FILENAME((value, cr) -> cr.metricsFilename = cr.getFilename(value),
+			"Result metrics filename", "Overrides the default name"),
+		FLIGHT_RECORDING_FILENAME((value, cr) -> cr.flightRecordingFilename = cr.getFilename(value),
+			"Flight recording filename", "When given, the run is continuously recorded with Java Flight Recorder " +
+			"into this file, using the low overhead default settings of the JVM. The recording has an event for each " +
+			"stage with its factor, study and item counts, and periodic statistics of the gene caches, next to the " +
+			"JVM events such as garbage collections. Needs a JVM and build with the flight recorder. No recording by " +
+			"default."),
 		;
 
 		ParameterReader reader;
@@ -209,35 +353,116 @@ public class CustomRunner
 
 	public void run() throws IOException
 	{
-		GeneProvider loader = null;
-
-		if (customExpressionFile != null)
+		try (Closeable recording = flightRecordingFilename == null ? null :
+			GemFlightRecorder.startRecording(flightRecordingFilename))
 		{
-			// Load expression data
-			loader = new SimpleFileExpressionLoader(customExpressionFile);
+			analyze();
 		}
-		else if (tcgaDirectory != null && tcgaStudy != null)
+	}
+
+	private void analyze() throws IOException
+	{
+		PipelineMetrics metrics = new PipelineMetrics(inputDirectory);
+		metrics.setFactor(factor);
+		metrics.setStudy(tcgaStudy != null ? tcgaStudy : customExpressionFile);
+		GeneProvider loader = null;
+
+		try (PipelineMetrics.Stage stage = metrics.start("load"))
 		{
-			Set<String> subsets = readSubsets();
+			if (customExpressionFile != null)
+			{
+				// Load expression data
+				loader = datasets.getExpression(customExpressionFile, lazyExpressionLoading, metrics);
+			}
+			else if (tcgaDirectory != null && tcgaStudy != null)
+			{
+				Set<String> subsets = readSubsets();
+
+				loader = datasets.getTCGA(tcgaDirectory + File.separator + tcgaStudy, subsets);
+			}
 
-			loader = new TCGAExpressionLoader(tcgaDirectory + File.separator + tcgaStudy, subsets);
+			if (loader != null && geneCacheMemoryBudget != Long.MAX_VALUE)
+			{
+				loader.setMemoryBudget(geneCacheMemoryBudget);
+			}
 		}
 
 		// Prepare triplets using the custom modulators and targets sets.
 		CustomTripletMaker maker = new CustomTripletMaker();
-		List<Triplet> trips = maker.generateForFactor(factor, modulators, targets, loader);
-		System.out.println("Size of triplets tested      = " + trips.size());
+		TripletTable tested;
+		try (PipelineMetrics.Stage stage = metrics.start("triplet generation"))
+		{
+			tested = maker.generateTableForFactor(factor, modulators, targets, loader);
+			stage.setItemsIn(modulators.size() * (long) targets.size());
+			stage.setItemsOut(tested.size());
+		}
+		System.out.println(logPrefix + "Size of triplets tested      = " + tested.size());
 
 		// Select significant triplets and determine modulation categories
-		trips = Selector.selectSignificantAndCategorized(trips, fdrThr, categoryPvalThr);
-		System.out.println("Size of significant triplets = " + trips.size());
+		Selector selector = new Selector(fdrThr, categoryPvalThr);
+		selector.setThreads(threads);
+		selector.setMetrics(metrics);
+		CoefficientCache cache = coefficientCacheSize > 0 ? new CoefficientCache(coefficientCacheSize) : null;
+		selector.setCache(cache);
+		PermutationTest permTest = null;
+		if (permutations > 0)
+		{
+			permTest = new PermutationTest(permutations);
+			permTest.setSeed(randomSeed);
+			permTest.setThreads(threads);
+			selector.setPermutationTest(permTest);
+		}
+		TripletTable table = tested.subset(selector.selectRows(tested));
+		System.out.println(logPrefix + "Size of significant triplets = " + table.size());
+		if (cache != null) System.out.println(logPrefix + "Coefficient cache: " + cache);
+		if (permTest != null)
+			System.out.println(logPrefix + "Permuted values calculated   = " + permTest.getPermutedValues());
+
+		// Measure the stability of the selection
+		if (bootstrapReplicates > 0)
+		{
+			try (PipelineMetrics.Stage stage = metrics.start("stability"))
+			{
+				StabilitySelection stability = new StabilitySelection(bootstrapReplicates, fdrThr, categoryPvalThr);
+				stability.setSeed(randomSeed);
+				stability.setThreads(threads);
+				stability.setCache(cache);
+				stability.setPermutationTest(permTest);
+				stability.run(tested).write(stabilityFilename);
+				stage.setItemsIn(tested.size());
+			}
+		}
 
 		// Write result triplets
-		Triplet.write(trips, tripletFilename);
+		try (PipelineMetrics.Stage stage = metrics.start("write"))
+		{
+			if (binaryResults) TripletFile.write(table, tripletFilename);
+			else Triplet.write(table, tripletFilename);
+			stage.setItemsIn(table.size());
+		}
 
 		// Draw the result graphic
-		ModPrint mp = new ModPrint();
-		mp.generateGEMPlot(trips, svgFilename);
+		try (PipelineMetrics.Stage stage = metrics.start("render"))
+		{
+			ModPrint mp = new ModPrint();
+			mp.generateGEMPlot(table.toTriplets(), svgFilename);
+			stage.setItemsIn(table.size());
+		}
+
+		metrics.write(metricsFilename);
+	}
+
+	/**
+	 * Gets the key of the expression dataset of the analysis in the registry, or null if it has no dataset.
+	 */
+	private Object getDatasetKey() throws IOException
+	{
+		if (customExpressionFile != null) return datasets.getExpressionKey(customExpressionFile, lazyExpressionLoading);
+		if (tcgaDirectory != null && tcgaStudy != null)
+		{
+			return datasets.getTCGAKey(tcgaDirectory + File.separator + tcgaStudy, readSubsets());
+		}
+		return null;
 	}
 
 	private Set<String> readSubsets() throws IOException
@@ -259,17 +484,104 @@ public class CustomRunner
 
 
 	/**
-	 * Example run of GEM
+	 * Runs the analyses of the given directories concurrently, sharing the loaded datasets. The parameters of all
+	 * directories are read first, so that each dataset is released as soon as the last analysis using it finishes. A
+	 * failing analysis does not stop the others, and the failures are reported when all analyses finish.
+	 * @param dirs directories that have a parameters file
+	 * @param workers number of analyses to run at the same time
+	 * @throws IOException if any of the analyses fails
 	 */
-	public static void main(String[] args) throws IOException
+	public static void runAll(List<String> dirs, int workers) throws IOException
 	{
-		List<String> dirs = FileUtil.getSubdirectoriesContaining(args[0], "parameters.txt");
+		if (workers < 1) throw new IllegalArgumentException("Number of workers has to be positive: " + workers);
 
+		// Share the processors between the concurrent analyses, unless their parameters say otherwise
+		DatasetRegistry datasets = new DatasetRegistry();
+		int concurrent = Math.max(1, Math.min(workers, dirs.size()));
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / concurrent);
+
+		// Reserve the dataset of each analysis before any of them starts
+		Map<String, CustomRunner> runners = new LinkedHashMap<>();
+		Map<String, Object> keys = new HashMap<>();
+		List<String> failed = new ArrayList<>();
 		for (String dir : dirs)
 		{
-			System.out.println("directory = " + dir);
-			CustomRunner cr = new CustomRunner(dir);
-			cr.run();
+			try
+			{
+				CustomRunner cr = new CustomRunner(dir, datasets, threads);
+				if (workers > 1) cr.logPrefix = dir + ": ";
+				Object key = cr.getDatasetKey();
+				datasets.reserve(key);
+				keys.put(dir, key);
+				runners.put(dir, cr);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				System.err.println("Analysis failed in " + dir + ": " + e);
+				failed.add(dir);
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		Map<String, Future<?>> runs = new LinkedHashMap<>();
+		try
+		{
+			for (String dir : runners.keySet())
+			{
+				runs.put(dir, pool.submit(() ->
+				{
+					try
+					{
+						System.out.println("directory = " + dir);
+						runners.get(dir).run();
+						return null;
+					}
+					finally
+					{
+						datasets.release(keys.get(dir));
+					}
+				}));
+			}
+
+			for (String dir : runs.keySet())
+			{
+				try
+				{
+					runs.get(dir).get();
+				}
+				catch (ExecutionException e)
+				{
+					System.err.println("Analysis failed in " + dir + ": " + e.getCause());
+					failed.add(dir);
+				}
+			}
+
+			System.out.println("Datasets loaded = " + datasets.getLoads());
+			if (!failed.isEmpty())
+			{
+				throw new IOException(failed.size() + " of " + dirs.size() + " analyses failed: " + failed);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
 		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Example run of GEM. The first argument is the directory to search for the parameters files in, and the optional
+	 * second argument is the number of analyses to run at the same time, which is 1 by default.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		List<String> dirs = FileUtil.getSubdirectoriesContaining(args[0], "parameters.txt");
+		int workers = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+		runAll(dirs, workers);
 	}
 }
@@ -1,8 +1,10 @@
 package org.panda.gem.run;
 
 import org.panda.gem.ModPrint;
+import org.panda.gem.PipelineMetrics;
 import org.panda.gem.Selector;
 import org.panda.gem.Triplet;
+import org.panda.gem.TripletTable;
 import org.panda.gem.resource.GEOFromFileLoader;
 import org.panda.gem.resource.PCTripletMaker;
 
@@ -53,29 +55,58 @@ public class GEOPCRunner
 	 */
 	static final String RESULT_SVG_FILE = DIR + "GEM-result-" + TF_SYMBOL + ".svg";
 
+	/**
+	 * Name of the JSON file that has the time, allocation and item counts of each stage of the run.
+	 */
+	static final String RESULT_METRICS_FILE = DIR + "GEM-result-" + TF_SYMBOL + "-metrics.json";
+
 	/**
 	 * Example run of GEM
 	 */
 	public static void main(String[] args) throws IOException
 	{
+		PipelineMetrics metrics = new PipelineMetrics(TF_SYMBOL);
+		metrics.setFactor(TF_SYMBOL);
+
 		// Load GEO data
-		GEOFromFileLoader loader = new GEOFromFileLoader(PLATFORM_FILE, SERIES_FILE);
+		GEOFromFileLoader loader;
+		try (PipelineMetrics.Stage stage = metrics.start("load"))
+		{
+			loader = new GEOFromFileLoader(PLATFORM_FILE, SERIES_FILE);
+		}
 
 		// Prepare triplets using Pathway Commons 2 version 8. In this case, most of the transcriptional targets come
 		// from TRANSFAC, and most of the binding proteins come from IntAct and HPRD, while there are also many other
 		// databases contributing.
 		PCTripletMaker maker = new PCTripletMaker();
-		List<Triplet> trips = maker.generateForFactor(TF_SYMBOL, loader);
+		TripletTable table;
+		try (PipelineMetrics.Stage stage = metrics.start("triplet generation"))
+		{
+			table = maker.generateTableForFactor(TF_SYMBOL, loader);
+			stage.setItemsOut(table.size());
+		}
 
 		// Select significant triplets and determine modulation categories
-		trips = Selector.selectSignificantAndCategorized(trips, FDR_THR, CATEG_PVAL_THR);
+		Selector selector = new Selector(FDR_THR, CATEG_PVAL_THR);
+		selector.setMetrics(metrics);
+		List<Triplet> trips = selector.select(table);
 		System.out.println("Size of significant triplets = " + trips.size());
 
 		// Write result triplets
-		Triplet.write(trips, RESULT_TRIPLET_FILE);
+		try (PipelineMetrics.Stage stage = metrics.start("write"))
+		{
+			Triplet.write(trips, RESULT_TRIPLET_FILE);
+			stage.setItemsIn(trips.size());
+		}
 
 		// Draw the result graphic
-		ModPrint mp = new ModPrint();
-		mp.generateGEMPlot(trips, RESULT_SVG_FILE);
+		try (PipelineMetrics.Stage stage = metrics.start("render"))
+		{
+			ModPrint mp = new ModPrint();
+			mp.generateGEMPlot(trips, RESULT_SVG_FILE);
+			stage.setItemsIn(trips.size());
+		}
+
+		metrics.write(RESULT_METRICS_FILE);
 	}
 }
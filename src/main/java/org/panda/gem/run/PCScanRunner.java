@@ -0,0 +1,247 @@
+package org.panda.gem.run;
+
+import org.panda.gem.*;
+import org.panda.gem.resource.GeneProvider;
+import org.panda.gem.resource.PCTripletMaker;
+import org.panda.gem.resource.SimpleFileExpressionLoader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Runs GEM for many transcription factors, sharing one expression dataset and one Pathway Commons graph. Factors are
+ * analyzed concurrently. Results of each factor are written to their own files in the output directory, and a summary
+ * of all factors is written to the summary file.
+ *
+ * @author Ozgun Babur
+ */
+public class PCScanRunner
+{
+	/**
+	 * Name of the summary file in the output directory.
+	 */
+	public static final String SUMMARY_FILENAME = "summary.txt";
+
+	/**
+	 * Provider of the expression data.
+	 */
+	private GeneProvider loader;
+
+	/**
+	 * Generator of the triplets.
+	 */
+	private PCTripletMaker maker;
+
+	/**
+	 * The false discovery rate that will be applied on selecting significant gamma.
+	 */
+	private double fdrThr = 0.1;
+
+	/**
+	 * The p-value threshold to use while determining the category of a significant triplet.
+	 */
+	private double categoryPvalThr = 0.05;
+
+	/**
+	 * Number of factors to analyze concurrently.
+	 */
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Memory budget of the cached genes of the loader in bytes, or Long.MAX_VALUE for no budget.
+	 */
+	private long geneCacheMemoryBudget = Long.MAX_VALUE;
+
+	public PCScanRunner(GeneProvider loader, PCTripletMaker maker)
+	{
+		this.loader = loader;
+		this.maker = maker;
+	}
+
+	public void setFdrThr(double fdrThr)
+	{
+		this.fdrThr = fdrThr;
+	}
+
+	public void setCategoryPvalThr(double categoryPvalThr)
+	{
+		this.categoryPvalThr = categoryPvalThr;
+	}
+
+	public void setThreads(int threads)
+	{
+		this.threads = threads;
+	}
+
+	/**
+	 * Limits the memory used by the cached genes of the loader during the scans. See
+	 * {@link org.panda.gem.resource.GeneCache} for the effects of eviction.
+	 * @param maxBytes maximum total estimated size of the cached genes in bytes, or Long.MAX_VALUE for no budget
+	 */
+	public void setGeneCacheMemoryBudget(long maxBytes)
+	{
+		this.geneCacheMemoryBudget = maxBytes;
+	}
+
+	/**
+	 * Analyzes all factors that have targets in the graph.
+	 */
+	public List<FactorResult> scanAll(String outDir) throws IOException
+	{
+		return scan(maker.getFactorsWithTargets(), outDir);
+	}
+
+	/**
+	 * Analyzes the given factors and writes their results to the given directory.
+	 * @return results of the factors, in the order of factor names
+	 */
+	public List<FactorResult> scan(Collection<String> factors, String outDir) throws IOException
+	{
+		Files.createDirectories(Paths.get(outDir));
+		if (geneCacheMemoryBudget != Long.MAX_VALUE) loader.setMemoryBudget(geneCacheMemoryBudget);
+
+		List<String> sorted = factors.stream().distinct().sorted().collect(Collectors.toList());
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<FactorResult>> futures = new ArrayList<>();
+		sorted.forEach(factor -> futures.add(executor.submit(() -> run(factor, outDir))));
+		executor.shutdown();
+
+		List<FactorResult> results = new ArrayList<>();
+		try
+		{
+			for (Future<FactorResult> future : futures)
+			{
+				results.add(future.get());
+			}
+		}
+		catch (InterruptedException e)
+		{
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		catch (ExecutionException e)
+		{
+			executor.shutdownNow();
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+
+		writeSummary(results, outDir + File.separator + SUMMARY_FILENAME);
+		return results;
+	}
+
+	/**
+	 * Analyzes a single factor.
+	 */
+	private FactorResult run(String factor, String outDir) throws IOException
+	{
+		TripletTable table = maker.generateTableForFactor(factor, loader);
+		TripletTable sig = table.subset(Selector.selectRows(table, fdrThr, categoryPvalThr));
+
+		if (sig.size() > 0)
+		{
+			String out = outDir + File.separator + factor;
+			Triplet.write(sig, out + ".txt");
+			new ModPrint().generateGEMPlot(sig.toTriplets(), out + ".svg");
+		}
+
+		return new FactorResult(factor, table.size(), sig);
+	}
+
+	/**
+	 * Writes the tested and significant triplet counts of each factor, and their totals.
+	 */
+	private void writeSummary(List<FactorResult> results, String file) throws IOException
+	{
+		ModulationCategory[] cats = ModulationCategory.values();
+
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file)))
+		{
+			writer.write("Factor\tTested\tSignificant");
+			for (ModulationCategory cat : cats)
+			{
+				writer.write("\t" + cat);
+			}
+
+			int tested = 0;
+			int significant = 0;
+			int[] catCnt = new int[cats.length];
+
+			for (FactorResult result : results)
+			{
+				writer.write("\n" + result.factor + "\t" + result.tested + "\t" + result.significant);
+				for (ModulationCategory cat : cats)
+				{
+					writer.write("\t" + result.categoryCounts[cat.ordinal()]);
+					catCnt[cat.ordinal()] += result.categoryCounts[cat.ordinal()];
+				}
+				tested += result.tested;
+				significant += result.significant;
+			}
+
+			writer.write("\nTotal\t" + tested + "\t" + significant);
+			for (int cnt : catCnt)
+			{
+				writer.write("\t" + cnt);
+			}
+		}
+	}
+
+	/**
+	 * Counts of tested and significant triplets of a factor.
+	 */
+	public static class FactorResult
+	{
+		public final String factor;
+		public final int tested;
+		public final int significant;
+
+		/**
+		 * Number of significant triplets in each modulation category, indexed with category ordinals.
+		 */
+		public final int[] categoryCounts;
+
+		FactorResult(String factor, int tested, TripletTable sig)
+		{
+			this.factor = factor;
+			this.tested = tested;
+			this.significant = sig.size();
+			this.categoryCounts = new int[ModulationCategory.values().length];
+
+			for (int row = 0; row < sig.size(); row++)
+			{
+				categoryCounts[sig.getCategory(row).ordinal()]++;
+			}
+		}
+	}
+
+	/**
+	 * Scans factors on a custom expression file. The first argument is the expression file, and the second argument is
+	 * the output directory. Remaining arguments are the factors to analyze. If no factor is given, all factors with
+	 * targets in Pathway Commons are analyzed.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		GeneProvider loader = new SimpleFileExpressionLoader(args[0]);
+		PCScanRunner runner = new PCScanRunner(loader, new PCTripletMaker());
+
+		List<FactorResult> results = args.length > 2 ?
+			runner.scan(Arrays.asList(args).subList(2, args.length), args[1]) : runner.scanAll(args[1]);
+
+		System.out.println("Factors scanned = " + results.size());
+		System.out.println("Factors with significant triplets = " +
+			results.stream().filter(r -> r.significant > 0).count());
+	}
+}
@@ -1,8 +1,10 @@
 package org.panda.gem.run;
 
 import org.panda.gem.ModPrint;
+import org.panda.gem.PipelineMetrics;
 import org.panda.gem.Selector;
 import org.panda.gem.Triplet;
+import org.panda.gem.TripletTable;
 import org.panda.gem.resource.CustomTripletMaker;
 import org.panda.gem.resource.SimpleFileExpressionLoader;
 
@@ -69,29 +71,58 @@ public class SimpleRunner
 	 */
 	static final String RESULT_SVG_FILE = DIR + "GEM-result-" + TF_SYMBOL + ".svg";
 
+	/**
+	 * Name of the JSON file that has the time, allocation and item counts of each stage of the run.
+	 */
+	static final String RESULT_METRICS_FILE = DIR + "GEM-result-" + TF_SYMBOL + "-metrics.json";
+
 	/**
 	 * Example run of GEM
 	 */
 	public static void main(String[] args) throws IOException
 	{
+		PipelineMetrics metrics = new PipelineMetrics(TF_SYMBOL);
+		metrics.setFactor(TF_SYMBOL);
+
 		// Load expression data
-		SimpleFileExpressionLoader loader = new SimpleFileExpressionLoader(EXPRESSION_FILE);
+		SimpleFileExpressionLoader loader;
+		try (PipelineMetrics.Stage stage = metrics.start("load"))
+		{
+			loader = new SimpleFileExpressionLoader(EXPRESSION_FILE, false, metrics);
+		}
 
 		// Prepare triplets using the custom modulators and targets sets.
 		CustomTripletMaker maker = new CustomTripletMaker();
 		Set<String> modulators = Files.lines(Paths.get(MODULATORS_FILE)).collect(Collectors.toSet());
 		Set<String> targets = Files.lines(Paths.get(TARGETS_FILE)).collect(Collectors.toSet());
-		List<Triplet> trips = maker.generateForFactor(TF_SYMBOL, modulators, targets, loader);
+		TripletTable table;
+		try (PipelineMetrics.Stage stage = metrics.start("triplet generation"))
+		{
+			table = maker.generateTableForFactor(TF_SYMBOL, modulators, targets, loader);
+			stage.setItemsOut(table.size());
+		}
 
 		// Select significant triplets and determine modulation categories
-		trips = Selector.selectSignificantAndCategorized(trips, FDR_THR, CATEG_PVAL_THR);
+		Selector selector = new Selector(FDR_THR, CATEG_PVAL_THR);
+		selector.setMetrics(metrics);
+		List<Triplet> trips = selector.select(table);
 		System.out.println("Size of significant triplets = " + trips.size());
 
 		// Write result triplets
-		Triplet.write(trips, RESULT_TRIPLET_FILE);
+		try (PipelineMetrics.Stage stage = metrics.start("write"))
+		{
+			Triplet.write(trips, RESULT_TRIPLET_FILE);
+			stage.setItemsIn(trips.size());
+		}
 
 		// Draw the result graphic
-		ModPrint mp = new ModPrint();
-		mp.generateGEMPlot(trips, RESULT_SVG_FILE);
+		try (PipelineMetrics.Stage stage = metrics.start("render"))
+		{
+			ModPrint mp = new ModPrint();
+			mp.generateGEMPlot(trips, RESULT_SVG_FILE);
+			stage.setItemsIn(trips.size());
+		}
+
+		metrics.write(RESULT_METRICS_FILE);
 	}
 }
@@ -12,10 +12,17 @@ import org.panda.utility.statistics.Binomial;
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 /**
@@ -39,6 +46,38 @@ public class TCGAPCRunner
 
 	static String outDir = "/home/ozgun/Analyses/GEM-runs/TCGA-PC/";
 
+	/**
+	 * Snapshot of the Pathway Commons graphs. Created at the first run if it does not exist.
+	 */
+	static String pcSnapshotFile = "/home/ozgun/Data/PC/gem-graph-snapshot.bin";
+
+	/**
+	 * Memory budget of the cached genes of each study in bytes. Long.MAX_VALUE keeps all genes of a study. See
+	 * {@link org.panda.gem.resource.GeneCache} for the effects of eviction.
+	 */
+	static long geneCacheMemoryBudget = Long.MAX_VALUE;
+
+	/**
+	 * Renderer of the plots, shared by all studies.
+	 */
+	private static final ModPrint plotter = new ModPrint();
+
+	/**
+	 * Renders the plots in the background while the next studies are analyzed.
+	 */
+	private static final ExecutorService renderer = Executors.newFixedThreadPool(
+		Runtime.getRuntime().availableProcessors(), r ->
+		{
+			Thread t = new Thread(r, "plot-renderer");
+			t.setDaemon(true);
+			return t;
+		});
+
+	/**
+	 * Plots that are submitted for rendering.
+	 */
+	private static final List<Future<?>> renderings = Collections.synchronizedList(new ArrayList<>());
+
 	public static void main(String[] args) throws IOException
 	{
 		Kronometre k = new Kronometre();
@@ -46,38 +85,73 @@ public class TCGAPCRunner
 		String modulator = "ESR1";
 		runInAllStudies(factor, modulator);
 		integrate(factor + (modulator == null ? "" : "-" + modulator));
+		renderer.shutdown();
 		k.print();
 	}
 
 	public static void runInAllStudies(String factor, String modulator) throws IOException
 	{
 		Map<String, Set<String>> subsets = readSubsets();
+		PCTripletMaker maker = PCTripletMaker.fromSnapshot(pcSnapshotFile);
+
+		// Metrics are written after the plots are rendered, so that they include the rendering
+		Map<String, PipelineMetrics> reports = new LinkedHashMap<>();
 
 		Arrays.asList(codes).stream().forEach(code -> {
 			try
 			{
 				System.out.println("code = " + code);
-				TCGAExpressionLoader loader = new TCGAExpressionLoader("/home/ozgun/Data/TCGA/" + code,
-					subsets.get(code));
+				String runName = factor + (modulator == null ? "" : "-" + modulator);
+				PipelineMetrics metrics = new PipelineMetrics(runName + "_" + code);
+				metrics.setFactor(factor);
+				metrics.setStudy(code);
+
+				TCGAExpressionLoader loader;
+				try (PipelineMetrics.Stage stage = metrics.start("load"))
+				{
+					loader = new TCGAExpressionLoader("/home/ozgun/Data/TCGA/" + code, subsets.get(code));
+					loader.setMemoryBudget(geneCacheMemoryBudget);
+				}
 
-				PCTripletMaker maker = new PCTripletMaker();
 //				CustomTripletMaker maker = new CustomTripletMaker();
 //				Set<String> targets = Files.lines(Paths.get("/home/ozgun/Documents/ESR1-responsive-genes.txt")).filter(l -> !l.isEmpty()).collect(Collectors.toSet());
 
-				List<Triplet> trips = modulator == null ? maker.generateForFactor(factor, loader) :
-					maker.generateForFactorAndModulator(factor, modulator, loader);
+				TripletTable table;
+				try (PipelineMetrics.Stage stage = metrics.start("triplet generation"))
+				{
+					table = modulator == null ? maker.generateTableForFactor(factor, loader) :
+						maker.generateTableForFactorAndModulator(factor, modulator, loader);
+					stage.setItemsOut(table.size());
+				}
 
 //				List<Triplet> trips = modulator == null ? maker.generateForFactor(factor, Collections.singleton(modulator), targets, loader) :
 //					maker.generateForFactorAndModulator(factor, modulator, targets, loader);
 
-				System.out.println("Triplet initial size = " + trips.size());
+				System.out.println("Triplet initial size = " + table.size());
 
-				trips = Selector.selectSignificantAndCategorized(trips, 0.1, 0.05);
+				Selector selector = new Selector(0.1, 0.05);
+				selector.setMetrics(metrics);
+				List<Triplet> trips = selector.select(table);
 				System.out.println("Triplet significant size = " + trips.size());
-				write(trips, factor + (modulator == null ? "" : "-" + modulator), code);
+
+				try (PipelineMetrics.Stage stage = metrics.start("write"))
+				{
+					write(trips, runName, code, metrics);
+					stage.setItemsIn(trips.size());
+				}
+
+				Files.createDirectories(Paths.get(outDir + runName));
+				reports.put(outDir + runName + File.separator + runName + "_" + code + "_metrics.json", metrics);
 			}
 			catch(IOException e){throw new RuntimeException(e);}
 		});
+
+		awaitRendering();
+
+		for (String file : reports.keySet())
+		{
+			reports.get(file).write(file);
+		}
 	}
 
 	private static Map<String, Set<String>> readSubsets() throws IOException
@@ -98,7 +172,12 @@ public class TCGAPCRunner
 		return Collections.emptyMap();
 	}
 
-	private static void write(List<Triplet> trips, String runName, String add) throws IOException
+	/**
+	 * Writes the triplets, and submits their plots for rendering.
+	 * @param metrics metrics to record the rendering in, or null
+	 */
+	private static void write(List<Triplet> trips, String runName, String add, PipelineMetrics metrics)
+		throws IOException
 	{
 		if (!trips.isEmpty())
 		{
@@ -106,42 +185,83 @@ public class TCGAPCRunner
 
 			String out = outDir + runName + File.separator + runName + "_" + add;
 			Triplet.write(trips, out + ".txt");
-			ModPrint mp = new ModPrint();
-			mp.generateGEMPlot(trips, out + ".svg");
+			renderings.add(renderer.submit(() ->
+			{
+				try (PipelineMetrics.Stage stage = PipelineMetrics.start(metrics, "render"))
+				{
+					List<String> files = plotter.generateGEMPlots(trips, out + ".svg");
+					stage.setItemsIn(trips.size());
+					stage.setItemsOut(files.size());
+					return files;
+				}
+			}));
 			if (!add.contains("recurrent")) writeModulatorCorrelations(trips, out);
 		}
 	}
 
+	/**
+	 * Waits until all submitted plots are rendered.
+	 */
+	private static void awaitRendering() throws IOException
+	{
+		List<Future<?>> list;
+		synchronized (renderings)
+		{
+			list = new ArrayList<>(renderings);
+			renderings.clear();
+		}
+
+		for (Future<?> future : list)
+		{
+			try
+			{
+				future.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while rendering plots");
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
 	public static void integrate(String run) throws IOException
 	{
 		if (!Files.exists(Paths.get(outDir + run))) return;
 
-		Map<Triplet, Integer> cnt = new HashMap<>();
-		Files.newDirectoryStream(Paths.get(outDir + run)).forEach(p -> {
-			if (p.toString().endsWith(".txt"))
+		RecurrenceIntegrator integrator = new RecurrenceIntegrator();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(outDir + run)))
+		{
+			for (Path p : stream)
 			{
-				try
+				String name = p.getFileName().toString();
+				if ((name.endsWith(".txt") || name.endsWith(TripletFile.EXTENSION)) && !name.contains("_recurrent_"))
 				{
-					Triplet.load(p.toString()).forEach(t -> cnt.put(t, cnt.containsKey(t) ? cnt.get(t) + 1 : 1));
+					integrator.addFile(p.toString());
 				}
-				catch (IOException e){throw new RuntimeException(e);}
 			}
-		});
+		}
 
-		List<Triplet> trips;
-		int rec = 2;
+		int[] hist = integrator.getHistogram();
+		System.out.println("Recurrence histogram = " + Arrays.toString(hist));
 
-		do
-		{
-			int i = rec;
-			trips = cnt.keySet().stream().filter(t -> cnt.get(t) >= i).collect(Collectors.toList());
-			write(trips, run, "recurrent_" + rec);
-			rec++;
-		} while (!trips.isEmpty());
+		// Triplets are ordered by decreasing recurrence, so each output is a prefix of the list
+
+		List<Triplet> trips = integrator.getRecurrent(2);
+		int end = trips.size();
 
+		for (int rec = 2; rec < hist.length; rec++)
+		{
+			write(trips.subList(0, end), run, "recurrent_" + rec, null);
+			end -= hist[rec];
+		}
 
-		write(cnt.keySet().stream().filter(t -> cnt.get(t) >= 3).collect(Collectors.toList()), run,
-			"recurrent_" + 3);
+		awaitRendering();
 	}
 
 	public static void writeModulatorCorrelations(List<Triplet> trips, String filenameWithoutExtension)
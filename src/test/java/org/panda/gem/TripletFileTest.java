@@ -0,0 +1,138 @@
+package org.panda.gem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes triplets to a binary file and reads them back, and checks that the symbols, counts, categories and p-values
+ * are kept, and that corrupt files are reported with an IOException.
+ *
+ * @author Ozgun Babur
+ */
+public class TripletFileTest
+{
+	private File file;
+	private Triplet.DummyGeneProvider genes;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		file = File.createTempFile("triplet-file-test", TripletFile.EXTENSION);
+		genes = new Triplet.DummyGeneProvider();
+	}
+
+	@After
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		List<Triplet> trips = new ArrayList<>();
+		trips.add(triplet("M1", "F1", "T1", ModulationCategory.ENHANCES_ACTIVATION, 0.01));
+		trips.add(triplet("M1", "F2", "T2", null, Double.NaN));
+		trips.add(triplet("M2", "F1", "T1", ModulationCategory.ATTENUATES_INHIBITION, 1e-300));
+		TripletFile.write(trips, file.getPath());
+
+		assertTrue(TripletFile.isBinary(file.getPath()));
+
+		List<Triplet> read = TripletFile.load(file.getPath(), new Triplet.DummyGeneProvider());
+		assertEquals(trips.size(), read.size());
+
+		for (int i = 0; i < trips.size(); i++)
+		{
+			Triplet exp = trips.get(i);
+			Triplet act = read.get(i);
+
+			assertEquals(exp.M.symbol, act.M.symbol);
+			assertEquals(exp.F.symbol, act.F.symbol);
+			assertEquals(exp.T.symbol, act.T.symbol);
+			assertArrayEquals(exp.f, act.f);
+			assertSame(exp.cat, act.cat);
+
+			for (Coefficient coef : Coefficient.values())
+			{
+				assertEquals(exp.getPval(coef), act.getPval(coef), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testDictionaryOrder() throws IOException
+	{
+		List<Triplet> trips = new ArrayList<>();
+		trips.add(triplet("B", "A", "C", null, Double.NaN));
+		trips.add(triplet("D", "A", "B", null, Double.NaN));
+		TripletFile.write(trips, file.getPath());
+
+		// Each symbol is defined once, right before the first row that uses it
+		List<String> records = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+		{
+			assertEquals(TripletFile.MAGIC, in.readInt());
+			assertEquals(TripletFile.VERSION, in.readInt());
+
+			for (int tag = in.read(); tag >= 0; tag = in.read())
+			{
+				if (tag == 0) records.add(in.readUTF());
+				else
+				{
+					records.add(in.readInt() + "," + in.readInt() + "," + in.readInt());
+					in.skipBytes(8 * 4 + 1 + Coefficient.values().length * 8);
+				}
+			}
+		}
+
+		assertEquals(Arrays.asList("B", "A", "C", "0,1,2", "D", "3,1,0"), records);
+	}
+
+	@Test
+	public void testInvalidCategory() throws IOException
+	{
+		TripletFile.write(Arrays.asList(triplet("M", "F", "T", null, Double.NaN)), file.getPath());
+
+		for (int cat : new int[]{ModulationCategory.values().length, -2})
+		{
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+			{
+				raf.seek(raf.length() - Coefficient.values().length * 8 - 1);
+				raf.writeByte(cat);
+			}
+
+			try
+			{
+				TripletFile.load(file.getPath(), genes);
+				fail("Category " + cat + " was accepted");
+			}
+			catch (IOException e)
+			{
+				assertTrue(e.getMessage().contains("category"));
+			}
+		}
+	}
+
+	private Triplet triplet(String m, String f, String t, ModulationCategory cat, double pval)
+	{
+		int[] counts = new int[8];
+		for (int i = 0; i < 8; i++)
+		{
+			counts[i] = Math.floorMod((m + f + t).hashCode(), 7) + i + 1;
+		}
+
+		Triplet trip = new Triplet(genes.get(m), genes.get(f), genes.get(t), counts);
+		trip.cat = cat;
+		trip.setCoefficient(Coefficient.GAMMA, 0.5, pval);
+		trip.setCoefficient(Coefficient.BETA_M, -0.25, pval / 2);
+		return trip;
+	}
+}
@@ -0,0 +1,356 @@
+package org.panda.gem.resource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.panda.gem.Gene;
+import org.panda.gem.Triplet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+/**
+ * Requests the same genes from many threads at once, and checks that each gene is loaded exactly once and that every
+ * thread gets the same gene instance.
+ *
+ * @author Ozgun Babur
+ */
+public class GeneCacheTest
+{
+	private static final int THREADS = 16;
+	private static final int GENES = 200;
+	private static final int SAMPLES = 50;
+
+	/**
+	 * Times each thread requests the whole set of symbols.
+	 */
+	private static final int ROUNDS = 3;
+
+	private File dir;
+	private List<String> symbols;
+	private double[][] vals;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = File.createTempFile("gene-cache-test", "");
+		if (!dir.delete() || !dir.mkdir()) throw new IOException("Cannot create " + dir);
+
+		Random rand = new Random(1);
+		symbols = new ArrayList<>();
+		vals = new double[GENES][SAMPLES];
+		for (int g = 0; g < GENES; g++)
+		{
+			symbols.add("G" + g);
+			for (int s = 0; s < SAMPLES; s++)
+			{
+				vals[g][s] = rand.nextGaussian();
+			}
+		}
+	}
+
+	@After
+	public void tearDown()
+	{
+		File[] files = dir.listFiles();
+		if (files != null) for (File file : files)
+		{
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testCacheLoadsOnce() throws Exception
+	{
+		assertLoadsOnce(new GeneCache());
+	}
+
+	@Test
+	public void testBoundedCacheLoadsOnce() throws Exception
+	{
+		// The budget holds all genes, so nothing is evicted
+		assertLoadsOnce(new GeneCache(Long.MAX_VALUE - 1));
+	}
+
+	@Test
+	public void testBudgetIsKeptWhileInUse() throws Exception
+	{
+		long geneSize = new Gene("G0", vals[0]).estimateSize();
+		GeneCache cache = new GeneCache((GENES / 2) * geneSize);
+
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		try
+		{
+			List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < THREADS; i++)
+			{
+				Random rand = new Random(i);
+				results.add(pool.submit(() ->
+				{
+					for (int j = 0; j < GENES * ROUNDS; j++)
+					{
+						int g = rand.nextInt(GENES);
+						Gene gene = cache.get(symbols.get(g), s -> new Gene(s, vals[g]));
+						assertEquals(symbols.get(g), gene.symbol);
+					}
+				}));
+			}
+
+			// Lower the budget while the genes are requested
+			cache.setMemoryBudget((GENES / 4) * geneSize);
+
+			for (Future<?> result : results)
+			{
+				result.get(1, TimeUnit.MINUTES);
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+
+		assertTrue(cache.getEvictions() > 0);
+		assertTrue(cache.getResidentBytes() <= (GENES / 4) * geneSize);
+		assertEquals(cache.size(), cache.getMisses() - cache.getEvictions());
+	}
+
+	@Test
+	public void testCacheLoadsMissingGeneOnce() throws Exception
+	{
+		GeneCache cache = new GeneCache();
+		AtomicInteger loads = new AtomicInteger();
+
+		Map<String, Gene> genes = hammer(Collections.singletonList("NONE"), sym ->
+			cache.get(sym, s ->
+			{
+				loads.incrementAndGet();
+				return null;
+			}));
+
+		assertNull(genes.get("NONE"));
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void testDummyGeneProvider() throws Exception
+	{
+		assertSameInstances(new Triplet.DummyGeneProvider());
+	}
+
+	@Test
+	public void testLazySimpleFileExpressionLoader() throws Exception
+	{
+		assertSameInstances(new SimpleFileExpressionLoader(writeExpressionFile(), true));
+	}
+
+	@Test
+	public void testMappedExpressionLoader() throws Exception
+	{
+		String binFile = new File(dir, "expression.bin").getPath();
+		MappedExpressionLoader.convert(writeExpressionFile(), binFile);
+
+		assertSameInstances(new MappedExpressionLoader(binFile));
+	}
+
+	@Test
+	public void testGEOFromFileLoader() throws Exception
+	{
+		File platform = new File(dir, "GPL.txt");
+		try (PrintWriter writer = new PrintWriter(platform))
+		{
+			writer.println("^PLATFORM = GPL0");
+			writer.println("ID\tGB_ACC\tGene Symbol");
+			for (int g = 0; g < GENES; g++)
+			{
+				writer.println("P" + g + "\tX" + g + "\t" + symbols.get(g));
+			}
+		}
+
+		File series = new File(dir, "GSE.txt");
+		try (PrintWriter writer = new PrintWriter(series))
+		{
+			writer.println("!Series_title\t\"Test\"");
+			writer.print("\"ID_REF\"");
+			for (int s = 0; s < SAMPLES; s++)
+			{
+				writer.print("\t\"S" + s + "\"");
+			}
+			writer.println();
+			for (int g = 0; g < GENES; g++)
+			{
+				writer.println("\"P" + g + "\"" + row(g));
+			}
+		}
+
+		GEOFromFileLoader loader = new GEOFromFileLoader(platform.getPath(), series.getPath());
+		assertSameInstances(loader);
+		assertEquals(GENES, loader.getCache().getMisses());
+	}
+
+	@Test
+	public void testTCGAExpressionLoader() throws Exception
+	{
+		// Normalized RSEM format of Broad Firehose
+		try (PrintWriter writer = new PrintWriter(new File(dir, "expression.txt")))
+		{
+			writer.print("Hybridization REF");
+			for (int s = 0; s < SAMPLES; s++)
+			{
+				writer.print(String.format("\tTCGA-AA-%04d-01A-11R-A00Z-07", s));
+			}
+			writer.println();
+			writer.print("gene_id");
+			for (int s = 0; s < SAMPLES; s++)
+			{
+				writer.print("\tnormalized_count");
+			}
+			writer.println();
+			for (int g = 0; g < GENES; g++)
+			{
+				writer.println(symbols.get(g) + "|" + (1000 + g) + row(g));
+			}
+		}
+
+		TCGAExpressionLoader loader = new TCGAExpressionLoader(dir.getPath(), null);
+		assertSameInstances(loader);
+		assertEquals(GENES, loader.getCache().getMisses());
+	}
+
+	/**
+	 * Checks that the loader of each symbol runs once, and all threads get the gene that it loaded.
+	 */
+	private void assertLoadsOnce(GeneCache cache) throws Exception
+	{
+		Map<String, AtomicInteger> loads = new ConcurrentHashMap<>();
+		Map<String, Gene> loaded = new ConcurrentHashMap<>();
+
+		Map<String, Gene> genes = hammer(symbols, sym -> cache.get(sym, s ->
+		{
+			loads.computeIfAbsent(s, k -> new AtomicInteger()).incrementAndGet();
+			Thread.yield();
+			Gene gene = new Gene(s, vals[Integer.parseInt(s.substring(1))]);
+			loaded.put(s, gene);
+			return gene;
+		}));
+
+		for (String sym : symbols)
+		{
+			assertEquals("Loads of " + sym, 1, loads.get(sym).get());
+			assertSame(loaded.get(sym), genes.get(sym));
+		}
+		assertEquals(GENES, cache.getMisses());
+		assertEquals(GENES * (THREADS * ROUNDS - 1), cache.getHits());
+		assertEquals(GENES, cache.size());
+	}
+
+	/**
+	 * Checks that the provider gives the same instance of each gene to all threads, and has all genes.
+	 */
+	private void assertSameInstances(GeneProvider provider) throws Exception
+	{
+		Map<String, Gene> genes = hammer(symbols, provider::get);
+
+		for (String sym : symbols)
+		{
+			assertNotNull("Missing " + sym, genes.get(sym));
+			assertSame(genes.get(sym), provider.get(sym));
+		}
+	}
+
+	/**
+	 * Requests all symbols from many threads. In the first round, all threads request each symbol at the same time,
+	 * to race on its loading. In the next rounds, each thread requests the symbols in a different order.
+	 * @return genes of the symbols, after checking that all requests of a symbol returned the same instance
+	 */
+	private Map<String, Gene> hammer(List<String> syms, Function<String, Gene> getter) throws Exception
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		CyclicBarrier barrier = new CyclicBarrier(THREADS);
+		List<Future<Map<String, Gene>>> results = new ArrayList<>();
+
+		try
+		{
+			for (int i = 0; i < THREADS; i++)
+			{
+				List<String> order = new ArrayList<>(syms);
+				Collections.shuffle(order, new Random(i));
+
+				results.add(pool.submit(() ->
+				{
+					Map<String, Gene> got = new HashMap<>();
+					for (String sym : syms)
+					{
+						barrier.await(1, TimeUnit.MINUTES);
+						got.put(sym, getter.apply(sym));
+					}
+					for (int r = 1; r < ROUNDS; r++)
+					{
+						for (String sym : order)
+						{
+							assertSame(got.get(sym), getter.apply(sym));
+						}
+					}
+					return got;
+				}));
+			}
+
+			Map<String, Gene> first = results.get(0).get(1, TimeUnit.MINUTES);
+			for (Future<Map<String, Gene>> result : results)
+			{
+				Map<String, Gene> got = result.get(1, TimeUnit.MINUTES);
+				for (String sym : syms)
+				{
+					assertSame("Different instances of " + sym, first.get(sym), got.get(sym));
+				}
+			}
+			return first;
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writes the genes in the format of {@link SimpleFileExpressionLoader}.
+	 */
+	private String writeExpressionFile() throws IOException
+	{
+		File file = new File(dir, "expression.txt");
+		try (PrintWriter writer = new PrintWriter(file))
+		{
+			writer.print("Symbol");
+			for (int s = 0; s < SAMPLES; s++)
+			{
+				writer.print("\tS" + s);
+			}
+			writer.println();
+			for (int g = 0; g < GENES; g++)
+			{
+				writer.println(symbols.get(g) + row(g));
+			}
+		}
+		return file.getPath();
+	}
+
+	/**
+	 * Values of the gene, each preceded by a tab.
+	 */
+	private String row(int g)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (double v : vals[g])
+		{
+			sb.append("\t").append(v);
+		}
+		return sb.toString();
+	}
+}